@@ -0,0 +1,58 @@
+package org.example;
+
+import org.example.data.LatLng;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class DemandGrid {
+
+  // Cells are ~1.1km tall at the equator.
+  public static final double CELL_SIZE_DEGREES = 0.01;
+  public static final long WINDOW_MILLIS = 5 * 60 * 1000;
+
+  /**
+   * Quantize a location into the id of the grid cell that contains it.
+   */
+  public static String cellOf(LatLng latLng) {
+    return cellAt(latLng, CELL_SIZE_DEGREES);
+  }
+
+  public static String cellAt(LatLng latLng, double cellSizeDegrees) {
+    return cellId(index(latLng.latitude, cellSizeDegrees), index(latLng.longitude, cellSizeDegrees));
+  }
+
+  /**
+   * The start of the time window that contains the given timestamp.
+   */
+  public static Long windowOf(Long timestamp) {
+    return timestamp - Math.floorMod(timestamp, WINDOW_MILLIS);
+  }
+
+  /**
+   * The cell containing the location and every cell within {@code radius} cells of it.
+   */
+  public static List<String> cellsAround(LatLng latLng, int radius) {
+    return cellsAround(latLng, radius, CELL_SIZE_DEGREES);
+  }
+
+  public static List<String> cellsAround(LatLng latLng, int radius, double cellSizeDegrees) {
+    var cells = new ArrayList<String>();
+    var lat = index(latLng.latitude, cellSizeDegrees);
+    var lng = index(latLng.longitude, cellSizeDegrees);
+    for (long i = lat - radius; i <= lat + radius; i++) {
+      for (long j = lng - radius; j <= lng + radius; j++) {
+        cells.add(cellId(i, j));
+      }
+    }
+    return cells;
+  }
+
+  private static long index(double degrees, double cellSizeDegrees) {
+    return (long) Math.floor(degrees / cellSizeDegrees);
+  }
+
+  private static String cellId(long latIndex, long lngIndex) {
+    return latIndex + ":" + lngIndex;
+  }
+}
@@ -1,5 +1,6 @@
 package org.example;
 
+import com.rpl.rama.AckLevel;
 import com.rpl.rama.Depot;
 import com.rpl.rama.PState;
 import com.rpl.rama.Path;
@@ -7,7 +8,15 @@ import com.rpl.rama.QueryTopologyClient;
 import com.rpl.rama.cluster.ClusterManagerBase;
 import org.example.data.*;
 
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 public class EVClient {
 
@@ -15,30 +24,63 @@ public class EVClient {
   private final Depot vehicleUpdateDepot;
   private final Depot userRegistrationDepot;
   private final Depot rideDepot;
+  private final Depot rideSearchDepot;
+  private final Depot paymentDepot;
 
   private final PState vehicle;
-  private final PState user;
   private final PState emailToUserId;
   private final PState userRideHistory;
   private final PState vehicleRide;
+  private final PState vehicleHold;
+  private final PState userLedger;
 
   private final QueryTopologyClient<List<Vehicle>> nearestVehiclesClient;
+  private final QueryTopologyClient<Map<String, CellDemand>> cellDemandSupplyClient;
+  private final QueryTopologyClient<RideStatus> currentRideClient;
+  private final QueryTopologyClient<Long> taskCountClient;
+  private final QueryTopologyClient<List<Vehicle>> vehiclePageClient;
+
+  private final ClusterManagerBase cluster;
+  // Null when the module doesn't archive rides
+  private final RideArchive rideArchive;
+
+  // Fraction of nearby vehicle searches recorded as demand, 0 disables demand capture.
+  private volatile double demandSampleRate = 0;
+  // Null when caching is disabled.
+  private volatile NearestVehiclesCache nearestVehiclesCache = null;
 
   public EVClient(ClusterManagerBase cluster) {
+    this(cluster, null);
+  }
+
+  /**
+   * @param rideArchive Must read from the same store as the archive the module was configured with, or
+   *                    null if the module doesn't archive rides.
+   */
+  public EVClient(ClusterManagerBase cluster, RideArchive rideArchive) {
+    this.cluster = cluster;
+    this.rideArchive = rideArchive;
     String moduleName = EVModule.class.getName();
 
     vehicleCreateDepot = cluster.clusterDepot(moduleName, "*vehicleCreate");
     vehicleUpdateDepot = cluster.clusterDepot(moduleName, "*vehicleUpdate");
     userRegistrationDepot = cluster.clusterDepot(moduleName, "*userRegistration");
     rideDepot = cluster.clusterDepot(moduleName, "*ride");
+    rideSearchDepot = cluster.clusterDepot(moduleName, "*rideSearch");
+    paymentDepot = cluster.clusterDepot(moduleName, "*payment");
 
     vehicle = cluster.clusterPState(moduleName, "$$vehicle");
-    user = cluster.clusterPState(moduleName, "$$user");
     emailToUserId = cluster.clusterPState(moduleName, "$$emailToUserId");
     userRideHistory = cluster.clusterPState(moduleName, "$$userRideHistory");
     vehicleRide = cluster.clusterPState(moduleName, "$$vehicleRide");
+    vehicleHold = cluster.clusterPState(moduleName, "$$vehicleHold");
+    userLedger = cluster.clusterPState(moduleName, "$$userLedger");
 
     nearestVehiclesClient = cluster.clusterQuery(moduleName, "nearestVehicles");
+    cellDemandSupplyClient = cluster.clusterQuery(moduleName, "cellDemandSupply");
+    currentRideClient = cluster.clusterQuery(moduleName, "currentRide");
+    taskCountClient = cluster.clusterQuery(moduleName, "taskCount");
+    vehiclePageClient = cluster.clusterQuery(moduleName, "vehiclePage");
   }
 
   // **********
@@ -69,48 +111,337 @@ public class EVClient {
 
   public void updateVehicle(String vehicleId, int battery, LatLng latLng) {
     vehicleUpdateDepot.append(new VehicleUpdate(vehicleId, battery, latLng));
+    invalidateCachedVehicle(vehicleId, latLng);
   }
 
   // Top 50 nearest vehicles
   public List<Vehicle> getVehiclesNearLocation(LatLng latLng) {
-    return nearestVehiclesClient.invoke(latLng);
+    recordSearch(latLng);
+    var cache = nearestVehiclesCache;
+    if (cache == null) return nearestVehiclesClient.invoke(latLng);
+
+    var vehicles = cache.get(latLng);
+    if (vehicles == null) {
+      vehicles = nearestVehiclesClient.invoke(latLng);
+      cache.put(latLng, vehicles);
+    }
+    return vehicles;
+  }
+
+  /**
+   * Serve {@link #getVehiclesNearLocation} from a cache shared by searches made from the same small
+   * grid cell. Entries are dropped when this client changes a vehicle they may include, other changes
+   * are only picked up once the entry expires.
+   *
+   * @param ttlMillis  How long a result is served for.
+   * @param maxEntries The number of cells to cache results for, least recently used cells are evicted first.
+   */
+  public void enableNearestVehiclesCache(long ttlMillis, int maxEntries) {
+    nearestVehiclesCache = new NearestVehiclesCache(ttlMillis, maxEntries);
+  }
+
+  public Optional<CacheStats> getNearestVehiclesCacheStats() {
+    var cache = nearestVehiclesCache;
+    return cache == null ? Optional.empty() : Optional.of(cache.stats());
+  }
+
+  private void invalidateCachedVehicle(String vehicleId, LatLng location) {
+    var cache = nearestVehiclesCache;
+    if (cache != null) cache.invalidateVehicle(vehicleId, location);
+  }
+
+  // **********
+  // Fleet import/export
+  // **********
+
+  private static final String FLEET_CSV_HEADER = "vehicleId,battery,latitude,longitude";
+
+  /**
+   * Create and position vehicles from a CSV file with the header {@value #FLEET_CSV_HEADER}.
+   * <p>
+   * Vehicles are imported concurrently. Once {@code maxInFlight} vehicles are being imported, reading
+   * the file waits for one of them to finish. A malformed line stops the import with an
+   * {@link IOException} naming the line, after the vehicles already read have finished importing. A
+   * failed append is also reported as an {@link IOException}.
+   */
+  public FleetImportResult importFleet(Reader csv, int maxInFlight) throws IOException, InterruptedException {
+    var inFlight = new Semaphore(maxInFlight);
+    var imported = new AtomicInteger();
+    var conflicts = new ConcurrentLinkedQueue<String>();
+    var failure = new CompletableFuture<Void>();
+
+    var reader = new BufferedReader(csv);
+    var header = reader.readLine();
+    if (!FLEET_CSV_HEADER.equals(header)) {
+      throw new IOException("Expected the header " + FLEET_CSV_HEADER + " but found " + header);
+    }
+    String line;
+    // The header is line 1
+    var lineNumber = 1;
+    try {
+      while ((line = reader.readLine()) != null && !failure.isDone()) {
+        lineNumber++;
+        if (line.isBlank()) continue;
+        var columns = line.split(",");
+        if (columns.length != 4) throw new IOException("Malformed line " + lineNumber + ": " + line);
+        var vehicleId = columns[0];
+        int battery;
+        LatLng location;
+        try {
+          battery = Integer.parseInt(columns[1]);
+          location = new LatLng(Double.parseDouble(columns[2]), Double.parseDouble(columns[3]));
+        } catch (NumberFormatException e) {
+          throw new IOException("Malformed line " + lineNumber + ": " + line, e);
+        }
+
+        inFlight.acquire();
+        var creationUUID = UUID.randomUUID().toString();
+        vehicleCreateDepot.appendAsync(new VehicleCreate(creationUUID, vehicleId))
+            // The update is only appended once the create has been processed, otherwise it may be
+            // processed first and dropped
+            .thenCompose((ignored) -> vehicle.selectOneAsync(Path.key(vehicleId, "creationUUID")))
+            .thenCompose((actualUUID) -> {
+              if (!creationUUID.equals(actualUUID)) {
+                conflicts.add(vehicleId);
+                return CompletableFuture.completedFuture(null);
+              }
+              return vehicleUpdateDepot.appendAsync(new VehicleUpdate(vehicleId, battery, location))
+                  .thenRun(imported::incrementAndGet);
+            })
+            .whenComplete((ignored, error) -> {
+              if (error != null) failure.completeExceptionally(error);
+              inFlight.release();
+            });
+      }
+    } finally {
+      // Wait for the remaining imports, including when a line can't be read, so nothing is still
+      // being appended once this returns
+      inFlight.acquire(maxInFlight);
+    }
+    if (failure.isCompletedExceptionally()) {
+      try {
+        failure.join();
+      } catch (CompletionException e) {
+        // Unwrap the append's own error, which may itself be wrapped by the chained futures
+        var cause = e.getCause();
+        while (cause instanceof CompletionException && cause.getCause() != null) cause = cause.getCause();
+        if (cause instanceof IOException ioException) throw ioException;
+        throw new IOException("Failed to import the fleet", cause);
+      }
+    }
+    return new FleetImportResult(imported.get(), new ArrayList<>(conflicts));
+  }
+
+  /**
+   * Write every vehicle to a CSV file in the format read by {@link #importFleet}.
+   * <p>
+   * Vehicles are read a page at a time from one partition after another, so only one page is held in
+   * memory.
+   */
+  public void exportFleet(Writer csv) throws IOException {
+    var writer = new BufferedWriter(csv);
+    writer.write(FLEET_CSV_HEADER);
+    writer.newLine();
+    long taskCount = taskCountClient.invoke();
+    for (int partition = 0; partition < taskCount; partition++) {
+      var startId = "";
+      while (true) {
+        var page = vehiclePageClient.invoke(partition, startId);
+        for (var v : page) {
+          writer.write(v.vehicleId + "," + v.battery + "," + v.location.latitude + "," + v.location.longitude);
+          writer.newLine();
+        }
+        if (page.size() < EVModule.VEHICLE_PAGE_SIZE) break;
+        // The smallest id after the last one on the page
+        startId = page.get(page.size() - 1).vehicleId + "\u0000";
+      }
+    }
+    writer.flush();
+  }
+
+  // **********
+  // Demand
+  // **********
+
+  /**
+   * Record a sample of {@link #getVehiclesNearLocation} calls as rider demand.
+   *
+   * @param sampleRate The fraction of searches to record, between 0 (disabled) and 1.
+   */
+  public void enableDemandCapture(double sampleRate) {
+    if (sampleRate < 0 || sampleRate > 1) {
+      throw new IllegalArgumentException("sampleRate must be between 0 and 1");
+    }
+    demandSampleRate = sampleRate;
+  }
+
+  private void recordSearch(LatLng latLng) {
+    var sampleRate = demandSampleRate;
+    if (sampleRate == 0 || ThreadLocalRandom.current().nextDouble() >= sampleRate) return;
+    // Each recorded search stands in for the searches that were not sampled
+    var weight = Math.round(1 / sampleRate);
+    var search = new RideSearch(DemandGrid.cellOf(latLng), System.currentTimeMillis(), weight);
+    // Fire and forget as a lost demand sample isn't worth slowing down the search
+    rideSearchDepot.appendAsync(search, AckLevel.NONE);
+  }
+
+  /**
+   * Compare rider demand with the number of vehicles in each cell.
+   *
+   * @param cells Cell ids from {@link DemandGrid}.
+   * @param since Only count searches from the window containing this timestamp (ms) onwards. Searches
+   *              made earlier in that window are included as demand is only kept per window.
+   * @return The demand and supply of each cell keyed by cell id.
+   */
+  public Map<String, CellDemand> getDemandSupply(Collection<String> cells, long since) {
+    return cellDemandSupplyClient.invoke(new ArrayList<>(cells), DemandGrid.windowOf(since));
   }
 
   // **********
   // Users
   // **********
 
+  private static final Pattern EMAIL_PATTERN = Pattern.compile("^[^@]+@[^@]+$");
+
   private Boolean isValidEmail(String email) {
-    return email.matches("^[^@]+@[^@]+$");
+    return EMAIL_PATTERN.matcher(email).matches();
   }
 
   public Optional<String> createAccount(String email) {
     if (!isValidEmail(email)) {
       return Optional.empty();
     }
-    var creationUUID = UUID.randomUUID().toString();
-    userRegistrationDepot.append(new UserRegistration(creationUUID, email));
-    // select the user with a matching email and check if the creationUUID matches
-    String userId = emailToUserId.selectOne(Path.key(email));
-    var matchingCreationUUID = user.selectOne(Path.key(userId, "creationUUID"));
+    // Reject emails that are already registered without appending to the depot
+    if (emailToUserId.selectOne(Path.key(email)) != null) return Optional.empty();
 
-    if (creationUUID.equals(matchingCreationUUID)) return Optional.of(userId);
+    // The userId is chosen here so a single read tells us whether this registration won
+    var userId = UUID.randomUUID().toString();
+    userRegistrationDepot.append(new UserRegistration(email, userId));
+    if (userId.equals(emailToUserId.selectOne(Path.key(email)))) return Optional.of(userId);
 
     return Optional.empty();
   }
 
+  // Archived rides are returned without a route
   public List<CompletedRide> getUserRideHistory(String userId) {
-    List<Map<String, Object>> results = userRideHistory.select(Path.key(userId).mapVals());
-    return results.stream().map((m) -> new CompletedRide(
-        userId,
-        (String) m.get("rideId"),
-        (String) m.get("vehicleId"),
-        (Long) m.get("startTimestamp"),
-        (Long) m.get("endTimestamp"),
-        (LatLng) m.get("startLocation"),
-        (LatLng) m.get("endLocation"),
-        (List<LatLng>) m.get("route")
-    )).toList();
+    return getUserRideHistory(userId, false);
+  }
+
+  /**
+   * @param includeArchived Read the routes of archived rides from the ride archive.
+   */
+  public List<CompletedRide> getUserRideHistory(String userId, boolean includeArchived) {
+    if (includeArchived && rideArchive == null) {
+      throw new IllegalStateException("This client was created without a ride archive");
+    }
+    Map<String, Map<String, Object>> rides = userRideHistory.selectOne(Path.key(userId));
+    if (rides == null) return List.of();
+
+    // Each segment holds many rides so only read it once
+    var segments = new HashMap<String, Map<String, Map<String, Object>>>();
+    return rides.entrySet().stream().map((entry) -> {
+      var rideId = entry.getKey();
+      var m = entry.getValue();
+      var segmentId = (String) m.get("segment");
+      if (includeArchived && segmentId != null) {
+        m = segments.computeIfAbsent(segmentId, this::readSegment).get(rideId);
+        if (m == null) {
+          throw new IllegalStateException("Segment " + segmentId + " does not contain ride " + rideId);
+        }
+      }
+      return new CompletedRide(
+          userId,
+          rideId,
+          (String) m.get("vehicleId"),
+          (Long) m.get("startTimestamp"),
+          (Long) m.get("endTimestamp"),
+          (LatLng) m.get("startLocation"),
+          (LatLng) m.get("endLocation"),
+          (List<LatLng>) m.get("route"),
+          (Double) m.get("distance"),
+          (Long) m.get("fare")
+      );
+    }).toList();
+  }
+
+  private Map<String, Map<String, Object>> readSegment(String segmentId) {
+    try {
+      return rideArchive.readSegment(segmentId);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // **********
+  // Billing
+  // **********
+
+  // The total of the user's fares less their payments, in the smallest currency unit
+  public long getUnpaidBalance(String userId) {
+    Long unpaid = userLedger.selectOne(Path.key(userId, "unpaid"));
+    return unpaid == null ? 0 : unpaid;
+  }
+
+  // Fares charged to the user keyed by ride id
+  public Map<String, Long> getCharges(String userId) {
+    // Subindexed maps are selected entry by entry
+    List<Map.Entry<String, Long>> charges = userLedger.select(Path.key(userId, "charges").all());
+    var result = new HashMap<String, Long>();
+    charges.forEach((entry) -> result.put(entry.getKey(), entry.getValue()));
+    return result;
+  }
+
+  /**
+   * @param paymentId Identifies the payment so retrying a payment can't count it twice.
+   */
+  public void recordPayment(String userId, String paymentId, long amount) {
+    paymentDepot.append(new Payment(userId, paymentId, amount));
+  }
+
+  // **********
+  // Backfill
+  // **********
+
+  /**
+   * Progress of the backfill topology, only available when the module was launched with
+   * {@link EVModule#withBackfill()}.
+   */
+  public BackfillStatus getBackfillStatus() {
+    QueryTopologyClient<Map<Integer, Map<String, Long>>> backfillProgressClient =
+        cluster.clusterQuery(EVModule.class.getName(), "backfillProgress");
+    var progress = backfillProgressClient.invoke();
+
+    long processed = 0;
+    long total = 0;
+    long startedAt = Long.MAX_VALUE;
+    long updatedAt = 0;
+    var caughtUp = true;
+    for (var entry : progress.entrySet()) {
+      // Depot partitions live on the task with the same index
+      int taskId = entry.getKey();
+      var taskProgress = entry.getValue();
+      var vehicleUpdates = taskProgress.getOrDefault("vehicleUpdate", 0L);
+      var rides = taskProgress.getOrDefault("ride", 0L);
+      var availableVehicleUpdates = depotPartitionSize(vehicleUpdateDepot, taskId);
+      var availableRides = depotPartitionSize(rideDepot, taskId);
+
+      processed += vehicleUpdates + rides;
+      total += availableVehicleUpdates + availableRides;
+      if (vehicleUpdates < availableVehicleUpdates || rides < availableRides) caughtUp = false;
+      if (taskProgress.containsKey("startedAt")) {
+        startedAt = Math.min(startedAt, taskProgress.get("startedAt"));
+        updatedAt = Math.max(updatedAt, taskProgress.get("updatedAt"));
+      }
+    }
+
+    var elapsedSeconds = (updatedAt - startedAt) / 1000.0;
+    var recordsPerSecond = elapsedSeconds > 0 ? processed / elapsedSeconds : 0;
+    return new BackfillStatus(processed, total, recordsPerSecond, caughtUp);
+  }
+
+  private static long depotPartitionSize(Depot depot, int partition) {
+    var info = depot.getPartitionInfo(partition);
+    return info.getEndOffset() - info.getStartOffset();
   }
 
   // **********
@@ -119,6 +450,7 @@ public class EVClient {
   public Optional<String> beginRide(String vehicleId, String userId, LatLng userLocation) {
     var rideId = UUID.randomUUID().toString();
     rideDepot.append(new RideBegin(userId, vehicleId, userLocation, rideId));
+    invalidateCachedVehicle(vehicleId, null);
     // query a pstate to determine if this invocation caused the ride to start
     // TODO this isn't guaranteed to work if we instantaneously end this ride before we get a chance to query
     var currentVehicleRideId = vehicleRide.selectOne(Path.key(vehicleId, "rideId"));
@@ -126,9 +458,42 @@ public class EVClient {
     return Optional.empty();
   }
 
+  /**
+   * Hold a vehicle so only this user can begin a ride on it until the reservation expires.
+   *
+   * @return The reservation id if the vehicle was reserved.
+   */
+  public Optional<String> reserveVehicle(String vehicleId, String userId) {
+    var reservationId = UUID.randomUUID().toString();
+    rideDepot.append(new RideReserve(userId, vehicleId, reservationId));
+    invalidateCachedVehicle(vehicleId, null);
+    var currentReservationId = vehicleHold.selectOne(Path.key(vehicleId, "reservationId"));
+    if (reservationId.equals(currentReservationId)) return Optional.of(reservationId);
+    return Optional.empty();
+  }
+
+  // Elapsed time, distance and fare so far of the user's ride in progress
+  public Optional<RideStatus> currentRide(String userId) {
+    return Optional.ofNullable(currentRideClient.invoke(userId));
+  }
+
+  /**
+   * End a ride without saying where. Vehicles in a ride aren't listed by {@link #getVehiclesNearLocation},
+   * so with the cache enabled, results cached near the drop-off point only list the vehicle again once
+   * they expire. Use {@link #endRide(String, String, LatLng)} when the drop-off point is known.
+   */
   public void endRide(String vehicleId, String userId) {
     // We include the userId as only the user who started the ride can end it.
     rideDepot.append(new RideEnd(userId, vehicleId));
   }
 
+  /**
+   * @param dropOffLocation Where the rider left the vehicle, used to drop cached results near it as the
+   *                        vehicle is available there again.
+   */
+  public void endRide(String vehicleId, String userId, LatLng dropOffLocation) {
+    endRide(vehicleId, userId);
+    invalidateCachedVehicle(vehicleId, dropOffLocation);
+  }
+
 }
@@ -4,10 +4,14 @@ import clojure.lang.MapEntry;
 import clojure.lang.PersistentVector;
 import com.rpl.rama.*;
 import com.rpl.rama.helpers.TopologyUtils;
+import com.rpl.rama.module.MicrobatchTopology;
 import com.rpl.rama.module.StreamTopology;
 import com.rpl.rama.ops.Ops;
+import com.rpl.rama.ops.RamaFunction1;
 import org.example.data.*;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -15,18 +19,157 @@ import static com.rpl.rama.helpers.TopologyUtils.extractJavaFields;
 
 public class EVModule implements RamaModule {
 
+  private static final int ARCHIVE_SWEEP_LIMIT = 1000;
+  private static final int HOLD_SWEEP_LIMIT = 1000;
+  public static final int VEHICLE_PAGE_SIZE = 1000;
+  // Bump the version to rebuild the backfilled PState from scratch after changing how it is derived.
+  // The topology and its PStates are all named after the version, so a new version is deployed as a
+  // fresh topology whose sources replay the depots from the beginning
+  public static final int BACKFILL_VERSION = 1;
+
+  // Rides ended longer ago than this are moved from $$userRideHistory into the ride archive
+  private long archiveAfterMillis = 30L * 24 * 60 * 60 * 1000;
+  private long archiveSweepMillis = 60 * 60 * 1000;
+  // Null when archival is disabled
+  private RideArchive rideArchive = null;
+  // 0 when the backfill topology is disabled
+  private int backfillVersion = 0;
+  private PricingModel pricingModel = PricingModel.DEFAULT;
+  private long holdMillis = 10 * 60 * 1000;
+  private long holdSweepMillis = 30 * 1000;
+
+  /**
+   * Enable archival of old rides. Without it rides are kept in $$userRideHistory indefinitely.
+   *
+   * @param rideArchive        Where archived rides are written.
+   * @param archiveAfterMillis How long after a ride ends it is archived.
+   * @param sweepMillis        How often each partition looks for rides to archive.
+   */
+  public EVModule withRideArchive(RideArchive rideArchive, long archiveAfterMillis, long sweepMillis) {
+    this.rideArchive = rideArchive;
+    this.archiveAfterMillis = archiveAfterMillis;
+    this.archiveSweepMillis = sweepMillis;
+    return this;
+  }
+
+  public EVModule withPricingModel(PricingModel pricingModel) {
+    this.pricingModel = pricingModel;
+    return this;
+  }
+
+  /**
+   * Configure vehicle reservations.
+   *
+   * @param holdMillis  How long a reservation holds a vehicle for.
+   * @param sweepMillis How often each partition releases expired holds. Holds stop applying as
+   *                    soon as they expire, the sweep only removes them.
+   */
+  public EVModule withReservationHold(long holdMillis, long sweepMillis) {
+    this.holdMillis = holdMillis;
+    this.holdSweepMillis = sweepMillis;
+    return this;
+  }
+
+  /**
+   * Declare the backfill topology, which rebuilds {@code $$vehicleUsageV<version>} from the full
+   * history of the *vehicleUpdate and *ride depots and then keeps it up to date.
+   */
+  public EVModule withBackfill() {
+    return withBackfill(BACKFILL_VERSION);
+  }
+
+  /**
+   * @param version Updating the module with a different version replaces the backfill topology and
+   *                its PStates with new ones built from the start of the depots.
+   */
+  public EVModule withBackfill(int version) {
+    if (version <= 0) throw new IllegalArgumentException("Backfill versions start at 1");
+    this.backfillVersion = version;
+    return this;
+  }
+
+  public static String backfillTopology(int version) {
+    return "backfillV" + version;
+  }
+
+  public static String backfillPState(int version) {
+    return "$$vehicleUsageV" + version;
+  }
+
+  public static String backfillProgressPState(int version) {
+    return "$$backfillProgressV" + version;
+  }
+
   public static class ExtractVehicleId extends TopologyUtils.ExtractJavaField {
     public ExtractVehicleId() {
       super("vehicleId");
     }
   }
 
+  public static class ExtractRidePartitionKey implements RamaFunction1<Object, Object> {
+    @Override
+    public Object invoke(Object ride) {
+      // Reservations are made on the user's partition, rides begin and end on the vehicle's
+      if (ride instanceof RideReserve reserve) return reserve.userId;
+      if (ride instanceof RideBegin begin) return begin.vehicleId;
+      return ((RideEnd) ride).vehicleId;
+    }
+  }
+
+  public static class ExtractUserId extends TopologyUtils.ExtractJavaField {
+    public ExtractUserId() {
+      super("userId");
+    }
+  }
+
   public static class ExtractUserEmail extends TopologyUtils.ExtractJavaField {
     public ExtractUserEmail() {
       super("email");
     }
   }
 
+  public static class ExtractCell extends TopologyUtils.ExtractJavaField {
+    public ExtractCell() {
+      super("cell");
+    }
+  }
+
+  // A hold only blocks other riders until it expires
+  public static boolean holdAllows(Map<String, Object> hold, String userId, Long now) {
+    return hold == null || (Long) hold.get("expiresAt") <= now || userId.equals(hold.get("riderId"));
+  }
+
+  // A user holds at most one vehicle at a time but may extend their hold on it
+  public static boolean userCanReserve(String heldVehicleId, Long holdExpiresAt, String vehicleId, Long now) {
+    return heldVehicleId == null || holdExpiresAt <= now || heldVehicleId.equals(vehicleId);
+  }
+
+  // Rides that began before distances were tracked have neither a distance nor a last location. Their
+  // first update only records where the vehicle is so the leg isn't measured from an unknown point
+  public static Double addLeg(Double distance, LatLng lastLocation, LatLng location) {
+    var total = distance == null ? 0.0 : distance;
+    if (lastLocation == null) return total;
+    return total + LatLng.distanceBetween(lastLocation, location);
+  }
+
+  // Whether the user may reserve the vehicle or begin a ride on it, wherever they are
+  public static boolean vehicleAvailable(Map<String, Object> vehicle, Map<String, Object> vehicleRide,
+                                         Map<String, Object> hold, String userId, Long now) {
+    // The vehicle must exist
+    if (vehicle == null) return false;
+    // The battery must be at least 10%
+    if ((Integer) vehicle.get("battery") < 10) return false;
+    // The vehicle must not be in a ride or held by another user
+    return vehicleRide == null && holdAllows(hold, userId, now);
+  }
+
+  public static boolean canBeginRide(Map<String, Object> vehicle, Map<String, Object> vehicleRide,
+                                     Map<String, Object> hold, String userId, LatLng userLocation, Long now) {
+    if (!vehicleAvailable(vehicle, vehicleRide, hold, userId, now)) return false;
+    // The user must be within 25m of the vehicle
+    return LatLng.distanceBetween((LatLng) vehicle.get("location"), userLocation) <= 25;
+  }
+
   public static Block extractMapValues(Object from, String... fieldVars) {
     Block.Impl ret = Block.create();
     for (String f : fieldVars) {
@@ -39,15 +182,19 @@ public class EVModule implements RamaModule {
   }
 
 
-  private static void declareTopology(Topologies topologies) {
+  private void declareTopology(Topologies topologies) {
     StreamTopology s = topologies.stream("stream");
     s.pstate("$$user",
         PState.mapSchema(
             String.class, // userId
             PState.fixedKeysSchema(
                 "email", String.class,
-                "creationUUID", String.class,
-                "inRide", Boolean.class
+                "inRide", Boolean.class,
+                // Set while the user is in a ride
+                "currentVehicleId", String.class,
+                // The vehicle the user last reserved and when that hold expires
+                "heldVehicleId", String.class,
+                "holdExpiresAt", Long.class
             )
         )
     );
@@ -62,7 +209,10 @@ public class EVModule implements RamaModule {
         PState.fixedKeysSchema(
             "battery", Integer.class,
             "location", LatLng.class,
-            "creationUUID", String.class
+            "creationUUID", String.class,
+            // The cell this vehicle is counted in by $$cellSupply. Null for vehicles created before
+            // $$cellSupply existed until their next update
+            "supplyCell", String.class
         )
     ));
 
@@ -81,11 +231,36 @@ public class EVModule implements RamaModule {
                 "rideId", String.class,
                 "riderId", String.class,
                 "startLocation", LatLng.class,
-                "startTimestamp", Long.class
+                "startTimestamp", Long.class,
+                // Running totals kept up to date by vehicle updates during the ride
+                "distance", Double.class,
+                "lastLocation", LatLng.class
             )
         )
     );
 
+    s.pstate("$$vehicleHold",
+        PState.mapSchema(
+            String.class, // vehicleId
+            PState.fixedKeysSchema(
+                "reservationId", String.class,
+                "riderId", String.class,
+                "expiresAt", Long.class
+            )
+        )
+    );
+
+    // Vehicles with holds to release, keyed by when the hold expires
+    s.pstate("$$holdExpiry", PState.mapSchema(
+        Long.class, // expiresAt
+        PState.setSchema(String.class) // vehicleIds
+    ));
+
+    s.pstate("$$cellSupply", PState.mapSchema(
+        String.class, // cell
+        Long.class // number of vehicles located in the cell
+    ));
+
     s.pstate("$$userRideHistory", PState.mapSchema(
         String.class, // userId
         PState.mapSchema(
@@ -96,48 +271,90 @@ public class EVModule implements RamaModule {
                 "endLocation", LatLng.class,
                 "startTimestamp", Long.class,
                 "endTimestamp", Long.class,
-                "route", PState.listSchema(LatLng.class)
+                // Meters
+                "distance", Double.class,
+                // Smallest currency unit
+                "fare", Long.class,
+                // Removed once the ride is archived
+                "route", PState.listSchema(LatLng.class),
+                // Set once the ride is archived
+                "segment", String.class
             )
         )
     ));
 
+    // Amounts are in the smallest currency unit
+    s.pstate("$$userLedger", PState.mapSchema(
+        String.class, // userId
+        PState.fixedKeysSchema(
+            "unpaid", Long.class, // balance owed
+            "charges", PState.mapSchema(
+                String.class, // rideId
+                Long.class // fare
+            ).subindexed(),
+            "payments", PState.mapSchema(
+                String.class, // paymentId
+                Long.class // amount
+            ).subindexed()
+        )
+    ));
+
+    if (rideArchive != null) {
+      // Users with rides that are yet to be archived, keyed by when the ride ended
+      s.pstate("$$rideArchiveQueue", PState.mapSchema(
+          Long.class, // endTimestamp
+          PState.setSchema(String.class) // userIds
+      ));
+    }
+
     s.source("*userRegistration").out("*arg")
-        .macro(extractJavaFields("*arg", "*email", "*creationUUID"))
-        .localSelect("$$emailToUserId", Path.key("*email")).out("*userId")
+        .macro(extractJavaFields("*arg", "*email", "*userId"))
+        .localSelect("$$emailToUserId", Path.key("*email")).out("*existingUserId")
         // Stop if the email is already associated with a user
-        .keepTrue(new Expr(Ops.IS_NULL, "*userId"))
-        // Generate a userId
-        .each(() -> UUID.randomUUID().toString()).out("*userId")
+        .keepTrue(new Expr(Ops.IS_NULL, "*existingUserId"))
         // Set the emailToUserId entry
         .localTransform("$$emailToUserId", Path.key("*email").termVal("*userId"))
         .hashPartition("*userId")
-        // Create the user
-        .localTransform("$$user",
-            Path.key("*userId")
-                .multiPath(
-                    Path.key("email").termVal("*email"),
-                    Path.key("creationUUID").termVal("*creationUUID"),
-                    Path.key("inRide").termVal(false)
-                )
-
+        // The userId comes from the client, so check it isn't already taken
+        .localSelect("$$user", Path.key("*userId")).out("*existingUser")
+        .ifTrue(new Expr(Ops.IS_NULL, "*existingUser"),
+            // Create the user
+            Block.localTransform("$$user",
+                Path.key("*userId")
+                    .multiPath(
+                        Path.key("email").termVal("*email"),
+                        Path.key("inRide").termVal(false)
+                    )
+            ),
+            // Release the email so the registration fails and the email can be registered again
+            Block.hashPartition("*email")
+                .localTransform("$$emailToUserId", Path.key("*email").termVoid())
         );
 
     s.source("*vehicleCreate").out("*arg")
         .macro(extractJavaFields("*arg", "*creationUUID", "*vehicleId"))
+        // Stop if a vehicle with this id already exists
+        .localSelect("$$vehicle", Path.key("*vehicleId")).out("*existingVehicle")
+        .keepTrue(new Expr(Ops.IS_NULL, "*existingVehicle"))
+        // New vehicles are placed at (0, 0) so count them towards that cell
+        .each(DemandGrid::cellOf, new LatLng(0L, 0L)).out("*cell")
         // Update the $$vehicle PState
         .localTransform("$$vehicle",
             Path.key("*vehicleId")
-                // Only performs the write if a vehicle with this id does not exist
-                .filterPred(Ops.IS_NULL)
                 .multiPath(
                     Path.key("battery").termVal(0),
                     Path.key("location").termVal(new LatLng(0L, 0L)),
-                    Path.key("creationUUID").termVal("*creationUUID")
+                    Path.key("creationUUID").termVal("*creationUUID"),
+                    Path.key("supplyCell").termVal("*cell")
                 )
-        );
+        )
+        .hashPartition("*cell")
+        .compoundAgg("$$cellSupply", CompoundAgg.map("*cell", Agg.sum(1L)));
 
     s.source("*vehicleUpdate").out("*arg")
         .macro(extractJavaFields("*arg", "*vehicleId", "*battery", "*location"))
+        // Null when the vehicle does not exist
+        .localSelect("$$vehicle", Path.key("*vehicleId", "location")).out("*previousLocation")
         .localTransform("$$vehicle",
             Path.key("*vehicleId")
                 // Only update a vehicle if it exists
@@ -150,50 +367,137 @@ public class EVModule implements RamaModule {
         .each(System::currentTimeMillis).out("*timestamp")
         .localTransform("$$vehicleLocationHistory",
             Path.key("*vehicleId", "*timestamp").termVal("*location")
-        );
+        )
+        // Add the distance since the last update to the vehicle's current ride
+        .localSelect("$$vehicleRide", Path.key("*vehicleId")).out("*activeRide")
+        .ifTrue(new Expr(Ops.IS_NOT_NULL, "*activeRide"),
+            Block.macro(extractMapValues("*activeRide", "*distance", "*lastLocation"))
+                .each(EVModule::addLeg, "*distance", "*lastLocation", "*location").out("*newDistance")
+                .localTransform("$$vehicleRide",
+                    Path.key("*vehicleId")
+                        .multiPath(
+                            Path.key("distance").termVal("*newDistance"),
+                            Path.key("lastLocation").termVal("*location")
+                        )
+                )
+        )
+        // Move the vehicle between $$cellSupply cells if it crossed a cell boundary. The cell it is
+        // counted in is read rather than derived from *previousLocation, so vehicles created before
+        // $$cellSupply existed are only ever added, never subtracted from a cell they weren't counted in
+        .keepTrue(new Expr(Ops.IS_NOT_NULL, "*previousLocation"))
+        .localSelect("$$vehicle", Path.key("*vehicleId", "supplyCell")).out("*previousCell")
+        .each(DemandGrid::cellOf, "*location").out("*cell")
+        .keepTrue(new Expr(Ops.NOT_EQUAL, "*previousCell", "*cell"))
+        .localTransform("$$vehicle", Path.key("*vehicleId", "supplyCell").termVal("*cell"))
+        .ifTrue(new Expr(Ops.IS_NOT_NULL, "*previousCell"),
+            Block.hashPartition("*previousCell")
+                .compoundAgg("$$cellSupply", CompoundAgg.map("*previousCell", Agg.sum(-1L))))
+        .hashPartition("*cell")
+        .compoundAgg("$$cellSupply", CompoundAgg.map("*cell", Agg.sum(1L)));
 
     s.source("*ride").out("*arg")
         .subSource("*arg",
             SubSource.create(RideBegin.class)
+                // RideBegin is partitioned by vehicleId. Under contention most begins are rejected
+                // because the vehicle is taken, and those are rejected here without leaving the
+                // vehicle's partition
                 .macro(extractJavaFields("*arg", "*userId", "*vehicleId", "*userLocation", "*rideId"))
-                // Stop if the vehicle does not exist
+                .each(System::currentTimeMillis).out("*timestamp")
                 .localSelect("$$vehicle", Path.key("*vehicleId")).out("*vehicle")
-                .keepTrue(new Expr(Ops.IS_NOT_NULL, "*vehicle"))
-                .macro(extractMapValues("*vehicle", "*battery", "*location"))
-                // Stop if the battery is below 10%
-                .keepTrue(new Expr(Ops.GREATER_THAN_OR_EQUAL, "*battery", 10))
-                // Stop if the user is over 25m away from the vehicle
-                .each(LatLng::distanceBetween, "*location", "*userLocation").out("*distance")
-                .keepTrue(new Expr(Ops.LESS_THAN_OR_EQUAL, "*distance", 25))
-                // Stop if the vehicle is in a ride
                 .localSelect("$$vehicleRide", Path.key("*vehicleId")).out("*vehicleRide")
-                .keepTrue(new Expr(Ops.IS_NULL, "*vehicleRide"))
-                .each(System::currentTimeMillis).out("*timestamp")
-                // Create the ride
+                .localSelect("$$vehicleHold", Path.key("*vehicleId")).out("*hold")
+                .keepTrue(new Expr(EVModule::canBeginRide, "*vehicle", "*vehicleRide", "*hold", "*userId", "*userLocation", "*timestamp"))
+                // Claim the vehicle
+                .macro(extractMapValues("*vehicle", "*location"))
                 .localTransform("$$vehicleRide",
                     Path.key("*vehicleId")
                         .multiPath(
                             Path.key("rideId").termVal("*rideId"),
                             Path.key("riderId").termVal("*userId"),
                             Path.key("startLocation").termVal("*location"),
-                            Path.key("startTimestamp").termVal("*timestamp")
+                            Path.key("startTimestamp").termVal("*timestamp"),
+                            Path.key("distance").termVal(0.0),
+                            Path.key("lastLocation").termVal("*location")
                         )
                 )
+                // The user's hold has served its purpose
+                .localTransform("$$vehicleHold", Path.key("*vehicleId").termVoid())
                 .hashPartition("*userId")
                 .localSelect("$$user", Path.key("*userId", "inRide")).out("*userInRide")
-                .ifTrue("*userInRide",
-                    // TRUE: roll back the change to $$vehicleRide as the user is already in a different ride
+                .ifTrue(new Expr(Ops.EQUAL, "*userInRide", false),
+                    // Claim the user
+                    Block.localTransform("$$user",
+                        Path.key("*userId")
+                            .multiPath(
+                                Path.key("inRide").termVal(true),
+                                Path.key("currentVehicleId").termVal("*vehicleId")
+                            )
+                    ),
+                    // The user doesn't exist or is already in a ride, so release the vehicle and
+                    // restore any hold on it. Only riders starting a second ride take this path
                     Block.hashPartition("*vehicleId")
-                        .localTransform("$$vehicleRide", Path.key("*vehicleId").termVal(null)),
-                    // FALSE: update the user's inRide property
-                    Block.localTransform("$$user", Path.key("*userId", "inRide").termVal(true))
+                        .localTransform("$$vehicleRide", Path.key("*vehicleId").termVal(null))
+                        .ifTrue(new Expr(Ops.IS_NOT_NULL, "*hold"),
+                            Block.localTransform("$$vehicleHold", Path.key("*vehicleId").termVal("*hold")))
+                ),
+            SubSource.create(RideReserve.class)
+                // RideReserve is partitioned by userId so each user holds at most one vehicle and users
+                // in a ride can't reserve
+                .macro(extractJavaFields("*arg", "*userId", "*vehicleId", "*reservationId"))
+                // Stop if the user does not exist or is in a ride
+                .localSelect("$$user", Path.key("*userId")).out("*user")
+                .keepTrue(new Expr(Ops.IS_NOT_NULL, "*user"))
+                .macro(extractMapValues("*user", "*inRide", "*heldVehicleId", "*holdExpiresAt"))
+                .keepTrue(new Expr(Ops.EQUAL, "*inRide", false))
+                // Stop if the user holds another vehicle
+                .each(System::currentTimeMillis).out("*now")
+                .keepTrue(new Expr(EVModule::userCanReserve, "*heldVehicleId", "*holdExpiresAt", "*vehicleId", "*now"))
+                .each(Ops.PLUS, "*now", holdMillis).out("*expiresAt")
+                // Claim the user's hold before the vehicle's
+                .localTransform("$$user",
+                    Path.key("*userId")
+                        .multiPath(
+                            Path.key("heldVehicleId").termVal("*vehicleId"),
+                            Path.key("holdExpiresAt").termVal("*expiresAt")
+                        )
+                )
+                .hashPartition("*vehicleId")
+                .localSelect("$$vehicle", Path.key("*vehicleId")).out("*vehicle")
+                .localSelect("$$vehicleRide", Path.key("*vehicleId")).out("*vehicleRide")
+                .localSelect("$$vehicleHold", Path.key("*vehicleId")).out("*hold")
+                .each(EVModule::vehicleAvailable, "*vehicle", "*vehicleRide", "*hold", "*userId", "*now").out("*canReserve")
+                .ifTrue("*canReserve",
+                    Block.localTransform("$$vehicleHold",
+                            Path.key("*vehicleId")
+                                .multiPath(
+                                    Path.key("reservationId").termVal("*reservationId"),
+                                    Path.key("riderId").termVal("*userId"),
+                                    Path.key("expiresAt").termVal("*expiresAt")
+                                )
+                        )
+                        .localTransform("$$holdExpiry", Path.key("*expiresAt").voidSetElem().termVal("*vehicleId")),
+                    // Release the user's claim unless a later reservation replaced it. A hold the user
+                    // was extending is left to expire at its original time
+                    Block.hashPartition("*userId")
+                        .localSelect("$$user", Path.key("*userId", "holdExpiresAt")).out("*claimedExpiresAt")
+                        .keepTrue(new Expr(Ops.EQUAL, "*claimedExpiresAt", "*expiresAt"))
+                        .ifTrue(new Expr(Ops.EQUAL, "*heldVehicleId", "*vehicleId"),
+                            Block.localTransform("$$user", Path.key("*userId", "holdExpiresAt").termVal("*holdExpiresAt")),
+                            Block.localTransform("$$user",
+                                Path.key("*userId")
+                                    .multiPath(
+                                        Path.key("heldVehicleId").termVoid(),
+                                        Path.key("holdExpiresAt").termVoid()
+                                    )
+                            )
+                        )
                 ),
             SubSource.create(RideEnd.class)
                 .macro(extractJavaFields("*arg", "*userId", "*vehicleId"))
                 .localSelect("$$vehicleRide", Path.key("*vehicleId")).out("*vehicleRide")
                 // Stop if the vehicle is not in a ride
                 .keepTrue(new Expr(Ops.IS_NOT_NULL, "*vehicleRide"))
-                .macro(extractMapValues("*vehicleRide", "*riderId", "*rideId", "*startLocation", "*startTimestamp"))
+                .macro(extractMapValues("*vehicleRide", "*riderId", "*rideId", "*startLocation", "*startTimestamp", "*distance"))
                 // Stop if the rider is not the user
                 .keepTrue(new Expr(Ops.EQUAL, "*riderId", "*userId"))
                 // Wipe the vehicle ride
@@ -215,9 +519,30 @@ public class EVModule implements RamaModule {
                   newRoute.add(0, startLocation);
                   return newRoute;
                 }, "*vehicleLocationHistory", "*startLocation").out("*route")
+                // Price the ride from the running distance rather than re-walking the route
+                .each((PricingModel pricingModel, Long startTimestamp, Long endTimestamp, Double distance) ->
+                        pricingModel.fare(endTimestamp - startTimestamp, distance == null ? 0 : distance),
+                    "*pricingModel", "*startTimestamp", "*endTimestamp", "*distance").out("*fare")
 
                 .hashPartition("*userId")
-                .localTransform("$$user", Path.key("*userId", "inRide").termVal(false))
+                .localTransform("$$user",
+                    Path.key("*userId")
+                        .multiPath(
+                            Path.key("inRide").termVal(false),
+                            Path.key("currentVehicleId").termVoid()
+                        )
+                )
+                // The user's hold was used up by this ride so they may reserve again
+                .localSelect("$$user", Path.key("*userId", "heldVehicleId")).out("*heldVehicleId")
+                .ifTrue(new Expr(Ops.EQUAL, "*heldVehicleId", "*vehicleId"),
+                    Block.localTransform("$$user",
+                        Path.key("*userId")
+                            .multiPath(
+                                Path.key("heldVehicleId").termVoid(),
+                                Path.key("holdExpiresAt").termVoid()
+                            )
+                    )
+                )
                 .localTransform("$$userRideHistory",
                     Path.key("*userId", "*rideId")
                         .multiPath(
@@ -226,14 +551,59 @@ public class EVModule implements RamaModule {
                             Path.key("endLocation").termVal("*endLocation"),
                             Path.key("startTimestamp").termVal("*startTimestamp"),
                             Path.key("endTimestamp").termVal("*endTimestamp"),
-                            Path.key("route").termVal("*route")
+                            Path.key("route").termVal("*route"),
+                            Path.key("distance").termVal("*distance"),
+                            Path.key("fare").termVal("*fare")
                         )
                 )
+                .macro(queueForArchive())
+                .compoundAgg("$$userLedger",
+                    CompoundAgg.map("*userId",
+                        CompoundAgg.map(
+                            "unpaid", Agg.sum("*fare"),
+                            "charges", CompoundAgg.map("*rideId", Agg.last("*fare"))
+                        )
+                    )
+                )
         );
 
+    s.source("*payment").out("*payment")
+        .macro(extractJavaFields("*payment", "*userId", "*paymentId", "*amount"))
+        // Stop if the payment has already been recorded
+        .localSelect("$$userLedger", Path.key("*userId", "payments", "*paymentId")).out("*existingPayment")
+        .keepTrue(new Expr(Ops.IS_NULL, "*existingPayment"))
+        .each(Ops.MINUS, 0L, "*amount").out("*balanceChange")
+        .compoundAgg("$$userLedger",
+            CompoundAgg.map("*userId",
+                CompoundAgg.map(
+                    "unpaid", Agg.sum("*balanceChange"),
+                    "payments", CompoundAgg.map("*paymentId", Agg.last("*amount"))
+                )
+            )
+        );
+
+    s.source("*holdTick")
+        .allPartition()
+        .each(System::currentTimeMillis).out("*now")
+        .localSelect("$$holdExpiry",
+            Path.sortedMapRangeTo("*now", SortedRangeToOptions.maxAmt(HOLD_SWEEP_LIMIT)).all()
+        ).out("*expiryEntry")
+        .each(MapEntry::key, "*expiryEntry").out("*expiresAt")
+        .each(MapEntry::val, "*expiryEntry").out("*vehicleIds")
+        .localTransform("$$holdExpiry", Path.key("*expiresAt").termVoid())
+        .each(Ops.EXPLODE, "*vehicleIds").out("*vehicleId")
+        // Skip holds that were extended or replaced since this entry was written
+        .localSelect("$$vehicleHold", Path.key("*vehicleId", "expiresAt")).out("*holdExpiresAt")
+        .keepTrue(new Expr(Ops.IS_NOT_NULL, "*holdExpiresAt"))
+        .keepTrue(new Expr(Ops.LESS_THAN_OR_EQUAL, "*holdExpiresAt", "*now"))
+        .localTransform("$$vehicleHold", Path.key("*vehicleId").termVoid());
+
+    if (rideArchive != null) declareArchiveSweep(s);
+
 
     topologies.query("nearestVehicles", "*point").out("*res")
         .allPartition()
+        .each(System::currentTimeMillis).out("*now")
         // Fetch all vehicles
         .localSelect("$$vehicle", Path.all()).out("*vehicleEntry")
         // Get the vehicleId
@@ -242,6 +612,10 @@ public class EVModule implements RamaModule {
         // Skip if the vehicle is in a ride
         .localSelect("$$vehicleRide", Path.key("*vehicleId")).out("*vehicleRide")
         .keepTrue(new Expr(Ops.IS_NULL, "*vehicleRide"))
+        // Skip if the vehicle is reserved
+        .localSelect("$$vehicleHold", Path.key("*vehicleId", "expiresAt")).out("*holdExpiresAt")
+        .keepTrue(new Expr((Long holdExpiresAt, Long now) -> holdExpiresAt == null || holdExpiresAt <= now,
+            "*holdExpiresAt", "*now"))
         // Get vehicle properties
         .macro(extractMapValues("*vehicle", "*location", "*battery"))
         // Get the distance between each vehicle and the point
@@ -263,15 +637,257 @@ public class EVModule implements RamaModule {
             .collect(Collectors.toList()), "*nearestTuples").out("*res");
   }
 
+  private static void declareFleetQueries(Topologies topologies) {
+    topologies.query("taskCount").out("*res")
+        .allPartition()
+        .originPartition()
+        .agg(Agg.count()).out("*res");
+
+    // Up to VEHICLE_PAGE_SIZE vehicles from one partition with ids from startId onwards
+    topologies.query("vehiclePage", "*partition", "*startId").out("*res")
+        .directPartition("*partition")
+        .localSelect("$$vehicle",
+            Path.sortedMapRangeFrom("*startId", SortedRangeFromOptions.maxAmt(VEHICLE_PAGE_SIZE))
+        ).out("*page")
+        .each((SortedMap<String, Map<String, Object>> page) -> page
+            .entrySet()
+            .stream()
+            .map((e) -> new Vehicle(e.getKey(), (Integer) e.getValue().get("battery"), (LatLng) e.getValue().get("location")))
+            .collect(Collectors.toList()), "*page").out("*res")
+        .originPartition();
+  }
+
+  // Queue the user of a ride that just ended for the archive sweep, if archival is enabled
+  private Block queueForArchive() {
+    if (rideArchive == null) return Block.create();
+    return Block.localTransform("$$rideArchiveQueue",
+        Path.key("*endTimestamp").voidSetElem().termVal("*userId"));
+  }
+
+  private void declareArchiveSweep(StreamTopology s) {
+    s.source("*archiveTick")
+        .allPartition()
+        .each(System::currentTimeMillis).out("*now")
+        .each(Ops.MINUS, "*now", archiveAfterMillis).out("*cutoff")
+        // Bound the work done by a single sweep, anything left over is picked up by the next one
+        .localSelect("$$rideArchiveQueue",
+            Path.sortedMapRangeTo("*cutoff", SortedRangeToOptions.maxAmt(ARCHIVE_SWEEP_LIMIT)).all()
+        ).out("*queueEntry")
+        .each(MapEntry::key, "*queueEntry").out("*endTimestamp")
+        .each(MapEntry::val, "*queueEntry").out("*userIds")
+        .each(Ops.EXPLODE, "*userIds").out("*userId")
+        // Each user's segment is a blocking write, so let other events run between users
+        .yieldIfOvertime()
+        .localSelect("$$userRideHistory", Path.key("*userId")).out("*rides")
+        // A user may be queued more than once, in which case later entries find nothing to archive
+        .each((Map<String, Map<String, Object>> rides, Long cutoff) -> {
+          var dueRides = new HashMap<String, Map<String, Object>>();
+          rides.forEach((rideId, ride) -> {
+            if (ride.get("segment") == null && (Long) ride.get("endTimestamp") <= cutoff) {
+              dueRides.put(rideId, ride);
+            }
+          });
+          return dueRides;
+        }, "*rides", "*cutoff").out("*dueRides")
+        .ifTrue(new Expr((Map<?, ?> dueRides) -> !dueRides.isEmpty(), "*dueRides"),
+            Block.each((RideArchive archive, String userId, Map<String, Map<String, Object>> dueRides) -> {
+                  try {
+                    return archive.writeSegment(userId, dueRides);
+                  } catch (IOException e) {
+                    // Failing here leaves the user queued, so a later sweep retries the write and the
+                    // rides stay in $$userRideHistory meanwhile
+                    throw new UncheckedIOException(e);
+                  }
+                }, "*rideArchive", "*userId", "*dueRides").out("*segment")
+                .each((Map<String, ?> dueRides) -> new ArrayList<>(dueRides.keySet()), "*dueRides").out("*rideIds")
+                // Keep a summary of each ride in the hot PState
+                .localTransform("$$userRideHistory",
+                    Path.key("*userId")
+                        .submap("*rideIds")
+                        .mapVals()
+                        .multiPath(
+                            Path.key("route").termVoid(),
+                            Path.key("segment").termVal("*segment")
+                        )
+                )
+        )
+        // Only this user is dequeued, so a failed write doesn't strand others queued at the same time
+        .localTransform("$$rideArchiveQueue", Path.key("*endTimestamp").setElem("*userId").termVoid())
+        .localTransform("$$rideArchiveQueue",
+            Path.key("*endTimestamp").filterPred((Set<?> userIds) -> userIds.isEmpty()).termVoid());
+  }
+
+  private static void declareCurrentRideQuery(Topologies topologies) {
+    topologies.query("currentRide", "*userId").out("*res")
+        .hashPartition("*userId")
+        .localSelect("$$user", Path.key("*userId", "currentVehicleId")).out("*vehicleId")
+        .ifTrue(new Expr(Ops.IS_NULL, "*vehicleId"),
+            Block.each(() -> null).out("*res"),
+            Block.hashPartition("*vehicleId")
+                .localSelect("$$vehicleRide", Path.key("*vehicleId")).out("*vehicleRide")
+                .each(System::currentTimeMillis).out("*now")
+                .each((String userId, String vehicleId, Map<String, Object> vehicleRide, Long now, PricingModel pricingModel) -> {
+                  // The ride may have ended since $$user was read
+                  if (vehicleRide == null || !userId.equals(vehicleRide.get("riderId"))) return null;
+                  var elapsedMillis = now - (Long) vehicleRide.get("startTimestamp");
+                  var distance = (Double) vehicleRide.get("distance");
+                  return new RideStatus(
+                      (String) vehicleRide.get("rideId"),
+                      vehicleId,
+                      (Long) vehicleRide.get("startTimestamp"),
+                      elapsedMillis,
+                      distance,
+                      pricingModel.fare(elapsedMillis, distance)
+                  );
+                }, "*userId", "*vehicleId", "*vehicleRide", "*now", "*pricingModel").out("*res")
+        )
+        .originPartition();
+  }
+
+  private static void declareDemandTopology(Topologies topologies) {
+    // Rider searches are a high volume, loss tolerant signal so they are aggregated in microbatches
+    // rather than per search
+    MicrobatchTopology mb = topologies.microbatch("demand");
+    mb.pstate("$$cellDemand", PState.mapSchema(
+        String.class, // cell
+        PState.mapSchema(
+            Long.class, // window start timestamp (ms)
+            Long.class // number of searches
+        ).subindexed()
+    ));
+
+    mb.source("*rideSearch").out("*microbatch")
+        .explodeMicrobatch("*microbatch").out("*search")
+        .macro(extractJavaFields("*search", "*cell", "*timestamp", "*weight"))
+        .each(DemandGrid::windowOf, "*timestamp").out("*window")
+        .compoundAgg("$$cellDemand",
+            CompoundAgg.map("*cell", CompoundAgg.map("*window", Agg.sum("*weight"))));
+
+    topologies.query("cellDemandSupply", "*cells", "*since").out("*res")
+        .each(Ops.EXPLODE, "*cells").out("*cell")
+        .hashPartition("*cell")
+        .localSelect("$$cellDemand",
+            Path.subselect(Path.key("*cell").sortedMapRangeFrom("*since").mapVals())
+        ).out("*windowCounts")
+        .localSelect("$$cellSupply", Path.key("*cell").nullToVal(0L)).out("*supply")
+        .each((String cell, List<Long> windowCounts, Long supply) -> new CellDemand(
+            cell,
+            windowCounts.stream().mapToLong(Long::longValue).sum(),
+            supply
+        ), "*cell", "*windowCounts", "*supply").out("*cellDemand")
+        .originPartition()
+        .agg(Agg.map("*cell", "*cellDemand")).out("*res");
+  }
+
+
+  private static Block backfillProgress(String progressPState, String depot) {
+    // Counts are keyed by the task that read the records so clients can compare them with the size
+    // of each depot partition. They may be stored on a different task.
+    return Block.compoundAgg(progressPState,
+        CompoundAgg.map("*taskId",
+            CompoundAgg.map(
+                depot, Agg.count(),
+                "startedAt", Agg.min("*now"),
+                "updatedAt", Agg.max("*now")
+            )
+        )
+    );
+  }
+
+  // Combine the progress of each depot partition from every task it was stored on
+  public static Map<Integer, Map<String, Long>> mergeBackfillProgress(
+      Map<Integer, List<Map.Entry<Integer, Map<String, Long>>>> progressByTask) {
+    var merged = new HashMap<Integer, Map<String, Long>>();
+    // Tasks that haven't processed anything yet are reported with no progress
+    progressByTask.keySet().forEach((taskId) -> merged.put(taskId, new HashMap<>()));
+    progressByTask.values().forEach((entries) -> entries.forEach((entry) -> {
+      var progress = merged.computeIfAbsent(entry.getKey(), (taskId) -> new HashMap<>());
+      entry.getValue().forEach((key, value) -> {
+        switch (key) {
+          case "startedAt" -> progress.merge(key, value, Math::min);
+          case "updatedAt" -> progress.merge(key, value, Math::max);
+          default -> progress.merge(key, value, Long::sum);
+        }
+      });
+    }));
+    return merged;
+  }
+
+  private static void declareBackfillTopology(Topologies topologies, int version) {
+    var usagePState = backfillPState(version);
+    var progressPState = backfillProgressPState(version);
+    // Microbatches replay the depots in parallel on every task, in large batches, independently of
+    // the "stream" topology's live processing. startFromBeginning only applies when a topology is
+    // first deployed, which is why each version gets its own topology
+    MicrobatchTopology mb = topologies.microbatch(backfillTopology(version));
+    mb.pstate(usagePState, PState.mapSchema(
+        String.class, // vehicleId
+        PState.fixedKeysSchema(
+            "updates", Long.class,
+            "rideRequests", Long.class
+        )
+    ));
+
+    mb.pstate(progressPState, PState.mapSchema(
+        Integer.class, // taskId
+        PState.fixedKeysSchema(
+            "vehicleUpdate", Long.class, // records processed
+            "ride", Long.class, // records processed
+            "startedAt", Long.class,
+            "updatedAt", Long.class
+        )
+    ));
+
+    mb.source("*vehicleUpdate", MicrobatchSourceOptions.startFromBeginning()).out("*microbatch")
+        .explodeMicrobatch("*microbatch").out("*arg")
+        // Give way to live events on this task when replaying a large batch
+        .yieldIfOvertime()
+        .macro(extractJavaFields("*arg", "*vehicleId"))
+        .each(Ops.CURRENT_TASK_ID).out("*taskId")
+        .each(System::currentTimeMillis).out("*now")
+        .compoundAgg(usagePState, CompoundAgg.map("*vehicleId", CompoundAgg.map("updates", Agg.count())))
+        .macro(backfillProgress(progressPState, "vehicleUpdate"));
+
+    mb.source("*ride", MicrobatchSourceOptions.startFromBeginning()).out("*microbatch")
+        .explodeMicrobatch("*microbatch").out("*arg")
+        .yieldIfOvertime()
+        .macro(extractJavaFields("*arg", "*vehicleId"))
+        .each(Ops.CURRENT_TASK_ID).out("*taskId")
+        .each(System::currentTimeMillis).out("*now")
+        .each((Object arg) -> arg instanceof RideBegin ? 1L : 0L, "*arg").out("*rideRequest")
+        // RideReserve records are stored on the rider's partition
+        .hashPartition("*vehicleId")
+        .compoundAgg(usagePState,
+            CompoundAgg.map("*vehicleId", CompoundAgg.map("rideRequests", Agg.sum("*rideRequest"))))
+        .macro(backfillProgress(progressPState, "ride"));
+
+    topologies.query("backfillProgress").out("*res")
+        .allPartition()
+        .each(Ops.CURRENT_TASK_ID).out("*taskId")
+        .localSelect(progressPState, Path.subselect(Path.all())).out("*progressEntries")
+        .originPartition()
+        .agg(Agg.map("*taskId", "*progressEntries")).out("*progressByTask")
+        .each(EVModule::mergeBackfillProgress, "*progressByTask").out("*res");
+  }
 
   @Override
   public void define(Setup setup, Topologies topologies) {
+    if (rideArchive != null) setup.declareObject("*rideArchive", rideArchive);
+    setup.declareObject("*pricingModel", pricingModel);
     setup.declareDepot("*vehicleCreate", Depot.hashBy(ExtractVehicleId.class));
     setup.declareDepot("*vehicleUpdate", Depot.hashBy(ExtractVehicleId.class));
     setup.declareDepot("*userRegistration", Depot.hashBy(ExtractUserEmail.class));
-    setup.declareDepot("*ride", Depot.hashBy(ExtractVehicleId.class));
+    setup.declareDepot("*ride", Depot.hashBy(ExtractRidePartitionKey.class));
+    setup.declareDepot("*payment", Depot.hashBy(ExtractUserId.class));
+    setup.declareDepot("*rideSearch", Depot.hashBy(ExtractCell.class));
+    if (rideArchive != null) setup.declareTickDepot("*archiveTick", archiveSweepMillis);
+    setup.declareTickDepot("*holdTick", holdSweepMillis);
 
     declareTopology(topologies);
+    declareCurrentRideQuery(topologies);
+    declareFleetQueries(topologies);
+    declareDemandTopology(topologies);
+    if (backfillVersion > 0) declareBackfillTopology(topologies, backfillVersion);
   }
 }
 
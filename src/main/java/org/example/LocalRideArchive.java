@@ -0,0 +1,85 @@
+package org.example;
+
+import com.rpl.rama.integration.TaskGlobalContext;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Stores ride archive segments as gzipped files under a directory on local disk.
+ * <p>
+ * Each task writes to its own subdirectory. Segments are written to a temporary file and then
+ * moved into place so a segment is either complete or absent, and existing segments are never
+ * modified.
+ */
+public class LocalRideArchive implements RideArchive {
+
+  private final String root;
+  private transient int taskId;
+  private transient AtomicLong segmentCounter;
+
+  /**
+   * @param root Directory segments are written under. Must be durable storage that every worker can
+   *             reach at the same path.
+   */
+  public LocalRideArchive(String root) {
+    this.root = Objects.requireNonNull(root, "root");
+  }
+
+  @Override
+  public void prepareForTask(int taskId, TaskGlobalContext context) {
+    this.taskId = taskId;
+    this.segmentCounter = new AtomicLong();
+  }
+
+  @Override
+  public String writeSegment(String userId, Map<String, Map<String, Object>> rides) throws IOException {
+    var segmentId = "task-" + taskId + "/" + userId + "-" + System.currentTimeMillis() + "-"
+        + segmentCounter.incrementAndGet() + ".seg.gz";
+    var segmentPath = resolve(segmentId);
+    Files.createDirectories(segmentPath.getParent());
+
+    // Copy into plain java collections so segments don't depend on Rama's internal types
+    var contents = new HashMap<String, Map<String, Object>>();
+    rides.forEach((rideId, ride) -> {
+      var copy = new HashMap<>(ride);
+      if (copy.get("route") != null) copy.put("route", new ArrayList<>((List<?>) copy.get("route")));
+      contents.put(rideId, copy);
+    });
+
+    var tmpPath = segmentPath.resolveSibling(segmentPath.getFileName() + ".tmp");
+    try (var out = new ObjectOutputStream(new GZIPOutputStream(Files.newOutputStream(tmpPath)))) {
+      out.writeObject(contents);
+    }
+    Files.move(tmpPath, segmentPath, StandardCopyOption.ATOMIC_MOVE);
+    return segmentId;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public Map<String, Map<String, Object>> readSegment(String segmentId) throws IOException {
+    try (var in = new ObjectInputStream(new GZIPInputStream(Files.newInputStream(resolve(segmentId))))) {
+      return (Map<String, Map<String, Object>>) in.readObject();
+    } catch (ClassNotFoundException e) {
+      throw new IOException("Unreadable segment " + segmentId, e);
+    }
+  }
+
+  private Path resolve(String segmentId) {
+    return Paths.get(root).resolve(segmentId);
+  }
+
+  @Override
+  public void close() throws IOException { }
+}
@@ -0,0 +1,114 @@
+package org.example;
+
+import org.example.data.CacheStats;
+import org.example.data.LatLng;
+import org.example.data.Vehicle;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A size bounded LRU cache of nearest vehicle results keyed by the grid cell the search was made
+ * from.
+ * <p>
+ * Searches from anywhere in a cell share a result, so cells should be small compared to the
+ * distance riders are willing to walk.
+ */
+public class NearestVehiclesCache {
+
+  // Cells are ~110m tall at the equator.
+  public static final double CELL_SIZE_DEGREES = 0.001;
+
+  private record Entry(List<Vehicle> vehicles, long cachedAt) { }
+
+  private final long ttlMillis;
+  private final LinkedHashMap<String, Entry> entries;
+  // The cells whose cached result includes each vehicle, so invalidation doesn't scan every entry
+  private final Map<String, Set<String>> vehicleCells = new HashMap<>();
+
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+  private long invalidations = 0;
+  private long totalHitAgeMillis = 0;
+
+  public NearestVehiclesCache(long ttlMillis, int maxEntries) {
+    this.ttlMillis = ttlMillis;
+    this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        if (size() <= maxEntries) return false;
+        evictions++;
+        unindex(eldest.getKey(), eldest.getValue());
+        return true;
+      }
+    };
+  }
+
+  /**
+   * @return The cached result for searches from this location, or null if there is none. The list
+   * is shared with other callers and can't be modified.
+   */
+  public synchronized List<Vehicle> get(LatLng latLng) {
+    var cell = DemandGrid.cellAt(latLng, CELL_SIZE_DEGREES);
+    var entry = entries.get(cell);
+    var now = System.currentTimeMillis();
+    if (entry == null || now - entry.cachedAt >= ttlMillis) {
+      if (entry != null) remove(cell);
+      misses++;
+      return null;
+    }
+    hits++;
+    totalHitAgeMillis += now - entry.cachedAt;
+    return entry.vehicles;
+  }
+
+  public synchronized void put(LatLng latLng, List<Vehicle> vehicles) {
+    var cell = DemandGrid.cellAt(latLng, CELL_SIZE_DEGREES);
+    // Stored unmodifiable as every hit returns the same list
+    var entry = new Entry(List.copyOf(vehicles), System.currentTimeMillis());
+    var previous = entries.put(cell, entry);
+    if (previous != null) unindex(cell, previous);
+    for (var vehicle : vehicles) vehicleCells.computeIfAbsent(vehicle.vehicleId, (id) -> new HashSet<>()).add(cell);
+  }
+
+  /**
+   * Drop results that include the vehicle, and results near its new location that it may now belong
+   * to.
+   *
+   * @param location The vehicle's new location, or null if it only became unavailable.
+   */
+  public synchronized void invalidateVehicle(String vehicleId, LatLng location) {
+    var before = entries.size();
+    var cells = vehicleCells.get(vehicleId);
+    // Copied as removing a cell updates the index
+    if (cells != null) List.copyOf(cells).forEach(this::remove);
+    if (location != null) {
+      DemandGrid.cellsAround(location, 1, CELL_SIZE_DEGREES).forEach(this::remove);
+    }
+    invalidations += before - entries.size();
+  }
+
+  private void remove(String cell) {
+    var entry = entries.remove(cell);
+    if (entry != null) unindex(cell, entry);
+  }
+
+  private void unindex(String cell, Entry entry) {
+    for (var vehicle : entry.vehicles) {
+      var cells = vehicleCells.get(vehicle.vehicleId);
+      if (cells == null) continue;
+      cells.remove(cell);
+      if (cells.isEmpty()) vehicleCells.remove(vehicle.vehicleId);
+    }
+  }
+
+  public synchronized CacheStats stats() {
+    var averageHitAgeMillis = hits == 0 ? 0 : (double) totalHitAgeMillis / hits;
+    return new CacheStats(hits, misses, evictions, invalidations, averageHitAgeMillis);
+  }
+}
@@ -0,0 +1,21 @@
+package org.example;
+
+import com.rpl.rama.RamaSerializable;
+import lombok.Data;
+
+/**
+ * Fares are an unlock fee plus a charge for every started minute and every meter ridden. All
+ * amounts are in the smallest currency unit, e.g. pence.
+ */
+public @Data class PricingModel implements RamaSerializable {
+  public static final PricingModel DEFAULT = new PricingModel(100, 20, 0);
+
+  public final long unlockFee;
+  public final long perMinute;
+  public final long perKilometer;
+
+  public long fare(long durationMillis, double distanceMeters) {
+    var startedMinutes = (durationMillis + 59_999) / 60_000;
+    return unlockFee + startedMinutes * perMinute + Math.round(distanceMeters / 1000 * perKilometer);
+  }
+}
@@ -0,0 +1,32 @@
+package org.example;
+
+import com.rpl.rama.integration.TaskGlobalObject;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Cold storage for completed rides that have been moved out of the $$userRideHistory PState.
+ * <p>
+ * Rides are written in immutable segments, one per user per archival sweep. The module writes
+ * segments from each task and clients read them back by the segment id stored in
+ * $$userRideHistory, so a client must be given an archive backed by the same store as the module.
+ */
+public interface RideArchive extends TaskGlobalObject {
+
+  /**
+   * Write a new segment.
+   *
+   * @param userId The user the rides belong to.
+   * @param rides  $$userRideHistory entries keyed by ride id.
+   * @return The id of the new segment.
+   */
+  String writeSegment(String userId, Map<String, Map<String, Object>> rides) throws IOException;
+
+  /**
+   * Read a segment written by {@link #writeSegment}.
+   *
+   * @return $$userRideHistory entries keyed by ride id.
+   */
+  Map<String, Map<String, Object>> readSegment(String segmentId) throws IOException;
+}
@@ -0,0 +1,14 @@
+package org.example.data;
+
+import com.rpl.rama.RamaSerializable;
+import lombok.Data;
+
+public @Data class BackfillStatus implements RamaSerializable {
+  // Depot records replayed into the backfilled PState so far
+  public final long processed;
+  // Depot records currently available to replay
+  public final long total;
+  public final double recordsPerSecond;
+  // True once every depot partition has been replayed up to its current end
+  public final boolean caughtUp;
+}
@@ -0,0 +1,21 @@
+package org.example.data;
+
+import com.rpl.rama.RamaSerializable;
+import lombok.Data;
+
+public @Data class CacheStats implements RamaSerializable {
+  public final long hits;
+  // Includes lookups that found an expired entry.
+  public final long misses;
+  // Entries removed to stay within the size limit.
+  public final long evictions;
+  // Entries removed because a vehicle they may include changed.
+  public final long invalidations;
+  // How old cached results were on average when they were served.
+  public final double averageHitAgeMillis;
+
+  public double hitRate() {
+    var lookups = hits + misses;
+    return lookups == 0 ? 0 : (double) hits / lookups;
+  }
+}
@@ -0,0 +1,17 @@
+package org.example.data;
+
+import com.rpl.rama.RamaSerializable;
+import lombok.Data;
+
+public @Data class CellDemand implements RamaSerializable {
+  public final String cell;
+  // Estimated rider searches in the cell over the requested period.
+  public final Long demand;
+  // Vehicles currently located in the cell.
+  public final Long supply;
+
+  // Positive when riders are searching for more vehicles than the cell holds.
+  public long imbalance() {
+    return demand - supply;
+  }
+}
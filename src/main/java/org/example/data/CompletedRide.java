@@ -14,4 +14,8 @@ public @Data class CompletedRide implements RamaSerializable {
   public final LatLng startLocation;
   public final LatLng endLocation;
   public final List<LatLng> route;
+  // Meters
+  public final Double distance;
+  // Smallest currency unit
+  public final Long fare;
 }
@@ -0,0 +1,12 @@
+package org.example.data;
+
+import com.rpl.rama.RamaSerializable;
+import lombok.Data;
+
+import java.util.List;
+
+public @Data class FleetImportResult implements RamaSerializable {
+  public final int imported;
+  // Vehicle ids in the file that already belonged to a vehicle, these vehicles were left untouched.
+  public final List<String> conflicts;
+}
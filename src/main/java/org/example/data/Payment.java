@@ -0,0 +1,12 @@
+package org.example.data;
+
+import com.rpl.rama.RamaSerializable;
+import lombok.Data;
+
+public @Data class Payment implements RamaSerializable {
+  public final String userId;
+  // Recording the same payment twice has no effect.
+  public final String paymentId;
+  // Smallest currency unit.
+  public final Long amount;
+}
@@ -0,0 +1,10 @@
+package org.example.data;
+
+import com.rpl.rama.RamaSerializable;
+import lombok.Data;
+
+public @Data class RideReserve implements RamaSerializable {
+  public final String userId;
+  public final String vehicleId;
+  public final String reservationId;
+}
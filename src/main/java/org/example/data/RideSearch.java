@@ -0,0 +1,11 @@
+package org.example.data;
+
+import com.rpl.rama.RamaSerializable;
+import lombok.Data;
+
+public @Data class RideSearch implements RamaSerializable {
+  public final String cell;
+  public final Long timestamp;
+  // Number of searches this record stands for when searches are sampled.
+  public final Long weight;
+}
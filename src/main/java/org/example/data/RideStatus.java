@@ -0,0 +1,15 @@
+package org.example.data;
+
+import com.rpl.rama.RamaSerializable;
+import lombok.Data;
+
+public @Data class RideStatus implements RamaSerializable {
+  public final String rideId;
+  public final String vehicleId;
+  public final Long startTimestamp;
+  public final Long elapsedMillis;
+  // Distance travelled so far in meters.
+  public final Double distance;
+  // Fare so far in the smallest currency unit.
+  public final Long fare;
+}
@@ -4,6 +4,6 @@ import com.rpl.rama.RamaSerializable;
 import lombok.Data;
 
 public @Data class UserRegistration implements RamaSerializable {
-  public final String creationUUID;
   public final String email;
+  public final String userId;
 }
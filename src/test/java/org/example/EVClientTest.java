@@ -6,8 +6,15 @@ import com.rpl.rama.test.InProcessCluster;
 import com.rpl.rama.test.LaunchConfig;
 import junit.framework.TestCase;
 import org.example.data.LatLng;
+import org.example.data.UserRegistration;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
 
 public class EVClientTest extends TestCase {
 
@@ -50,6 +57,48 @@ public class EVClientTest extends TestCase {
     }
   }
 
+  public void testImportExportFleet() throws Exception {
+    try (InProcessCluster ipc = InProcessCluster.create()) {
+      ipc.launchModule(new EVModule(), new LaunchConfig(4, 4));
+      var client = new EVClient(ipc);
+      var existingVehicleId = client.createVehicle();
+
+      var csv = new StringBuilder("vehicleId,battery,latitude,longitude\n");
+      var expectedRows = new HashSet<String>();
+      for (int i = 0; i < 100; i++) {
+        var row = "IMPORT" + i + "," + (i % 100) + "," + (i / 10.0) + "," + (-i / 10.0);
+        csv.append(row).append("\n");
+        expectedRows.add(row);
+      }
+      // An id that is already taken is reported and the existing vehicle left alone
+      csv.append(existingVehicleId).append(",50,1.0,2.0\n");
+
+      var result = client.importFleet(new StringReader(csv.toString()), 8);
+      assertEquals(100, result.imported);
+      assertEquals(List.of(existingVehicleId), result.conflicts);
+      assertEquals(0, (int) ipc.clusterPState(moduleName, "$$vehicle").selectOne(Path.key(existingVehicleId, "battery")));
+
+      var out = new StringWriter();
+      client.exportFleet(out);
+      var lines = out.toString().lines().toList();
+      assertEquals("vehicleId,battery,latitude,longitude", lines.get(0));
+      var exportedRows = new HashSet<>(lines.subList(1, lines.size()));
+      assertEquals(101, exportedRows.size());
+      assertTrue(exportedRows.containsAll(expectedRows));
+      assertTrue(exportedRows.contains(existingVehicleId + ",0,0.0,0.0"));
+
+      // A malformed line stops the import once the lines before it are imported
+      var malformed = "vehicleId,battery,latitude,longitude\nMALFORMED0,50,1.0,2.0\nMALFORMED1,full,1.0,2.0\n";
+      try {
+        client.importFleet(new StringReader(malformed), 8);
+        fail();
+      } catch (IOException e) {
+        assertTrue(e.getMessage().startsWith("Malformed line 3:"));
+      }
+      assertEquals(50, (int) ipc.clusterPState(moduleName, "$$vehicle").selectOne(Path.key("MALFORMED0", "battery")));
+    }
+  }
+
   public void testCreateAccount() throws Exception {
     try (InProcessCluster ipc = InProcessCluster.create()) {
       var client = launchModule(ipc);
@@ -64,6 +113,17 @@ public class EVClientTest extends TestCase {
       var userId = emailToUserId.selectOne(Path.key(validEmail));
       assertNotNull(userId);
       assertNotNull(users.selectOne(Path.key(userId)));
+      assertEquals(userId, created.get());
+
+      // Registering the same email again should fail without touching the existing user
+      assertTrue(client.createAccount(validEmail).isEmpty());
+      assertEquals(userId, emailToUserId.selectOne(Path.key(validEmail)));
+
+      // A registration reusing an existing userId is rejected and its email released
+      Depot userRegistration = ipc.clusterDepot(moduleName, "*userRegistration");
+      userRegistration.append(new UserRegistration("other@example.com", userId));
+      assertNull(emailToUserId.selectOne(Path.key("other@example.com")));
+      assertEquals(validEmail, users.selectOne(Path.key(userId, "email")));
 
       // Creating an account with an invalid email should fail
       var invalidEmail = "test";
@@ -115,6 +175,87 @@ public class EVClientTest extends TestCase {
   }
 
 
+  public void testArchiveRideHistory() throws Exception {
+    var archiveRoot = Files.createTempDirectory("ride-archive").toString();
+    try (InProcessCluster ipc = InProcessCluster.create()) {
+      // Archive rides as soon as they end
+      var module = new EVModule().withRideArchive(new LocalRideArchive(archiveRoot), 0, 1000);
+      ipc.launchModule(module, new LaunchConfig(1, 1));
+      var client = new EVClient(ipc, new LocalRideArchive(archiveRoot));
+      var userRideHistory = ipc.clusterPState(moduleName, "$$userRideHistory");
+
+      var userId = client.createAccount("test@example.com").orElseThrow();
+      var vehicleId = client.createVehicle();
+      var startLocation = new LatLng(1L, 2L);
+      client.updateVehicle(vehicleId, 100, startLocation);
+      var rideId = client.beginRide(vehicleId, userId, startLocation).orElseThrow();
+      client.updateVehicle(vehicleId, 100, new LatLng(3L, 4L));
+      client.endRide(vehicleId, userId);
+
+      // Wait for a sweep to archive the ride
+      var deadline = System.currentTimeMillis() + 30000;
+      while (userRideHistory.selectOne(Path.key(userId, rideId, "segment")) == null) {
+        assertTrue(System.currentTimeMillis() < deadline);
+        Thread.sleep(100);
+      }
+      // Only a summary is kept in the PState
+      assertNull(userRideHistory.selectOne(Path.key(userId, rideId, "route")));
+      // The user is taken off the archive queue once their rides are archived
+      var rideArchiveQueue = ipc.clusterPState(moduleName, "$$rideArchiveQueue");
+      while (!rideArchiveQueue.select(Path.all()).isEmpty()) {
+        assertTrue(System.currentTimeMillis() < deadline);
+        Thread.sleep(100);
+      }
+
+      var summary = client.getUserRideHistory(userId).get(0);
+      assertEquals(rideId, summary.rideId);
+      assertEquals(vehicleId, summary.vehicleId);
+      assertNull(summary.route);
+
+      // The route is read back from the archive when asked for
+      var archived = client.getUserRideHistory(userId, true).get(0);
+      assertEquals(rideId, archived.rideId);
+      assertEquals(List.of(startLocation, new LatLng(3L, 4L)), archived.route);
+    }
+  }
+
+  public void testRideBilling() throws Exception {
+    try (InProcessCluster ipc = InProcessCluster.create()) {
+      var pricingModel = new PricingModel(100, 20, 50);
+      ipc.launchModule(new EVModule().withPricingModel(pricingModel), new LaunchConfig(2, 2));
+      var client = new EVClient(ipc);
+
+      var userId = client.createAccount("a@example.com").orElseThrow();
+      var vehicleId = client.createVehicle();
+      var start = new LatLng(51.5, -0.12);
+      var end = new LatLng(51.51, -0.12);
+      client.updateVehicle(vehicleId, 100, start);
+      assertEquals(0, client.getUnpaidBalance(userId));
+
+      var fares = new ArrayList<Long>();
+      for (int i = 0; i < 2; i++) {
+        var rideId = client.beginRide(vehicleId, userId, start).orElseThrow();
+        client.updateVehicle(vehicleId, 100, end);
+        client.updateVehicle(vehicleId, 100, start);
+        client.endRide(vehicleId, userId);
+
+        // The fare is stored with the ride and charged to the user
+        var ride = client.getUserRideHistory(userId).stream().filter((r) -> r.rideId.equals(rideId)).findFirst().orElseThrow();
+        assertEquals(2 * LatLng.distanceBetween(start, end), ride.distance, 0.001);
+        assertEquals(pricingModel.fare(ride.endTimestamp - ride.startTimestamp, ride.distance), (long) ride.fare);
+        assertEquals(ride.fare, client.getCharges(userId).get(rideId));
+        fares.add(ride.fare);
+      }
+      var total = fares.get(0) + fares.get(1);
+      assertEquals(total, client.getUnpaidBalance(userId));
+
+      // Payments reduce the balance once, even if they are recorded twice
+      client.recordPayment(userId, "payment-1", fares.get(0));
+      client.recordPayment(userId, "payment-1", fares.get(0));
+      assertEquals(total - fares.get(0), client.getUnpaidBalance(userId));
+    }
+  }
+
   public void testBeginRide() throws Exception {
     try (InProcessCluster ipc = InProcessCluster.create()) {
       var client = launchModule(ipc);
@@ -158,6 +299,139 @@ public class EVClientTest extends TestCase {
     }
   }
 
+  public void testCurrentRide() throws Exception {
+    try (InProcessCluster ipc = InProcessCluster.create()) {
+      var pricingModel = new PricingModel(100, 20, 50);
+      ipc.launchModule(new EVModule().withPricingModel(pricingModel), new LaunchConfig(2, 2));
+      var client = new EVClient(ipc);
+
+      var userId = client.createAccount("a@example.com").orElseThrow();
+      var vehicleId = client.createVehicle();
+      var startLocation = new LatLng(51.5, -0.12);
+      client.updateVehicle(vehicleId, 100, startLocation);
+      assertTrue(client.currentRide(userId).isEmpty());
+
+      var rideId = client.beginRide(vehicleId, userId, startLocation).orElseThrow();
+      var status = client.currentRide(userId).orElseThrow();
+      assertEquals(rideId, status.rideId);
+      assertEquals(vehicleId, status.vehicleId);
+      assertEquals(0.0, status.distance);
+
+      // Distance accumulates over each leg of the ride
+      var middle = new LatLng(51.51, -0.12);
+      var end = new LatLng(51.51, -0.13);
+      client.updateVehicle(vehicleId, 90, middle);
+      client.updateVehicle(vehicleId, 80, end);
+      var expectedDistance = LatLng.distanceBetween(startLocation, middle) + LatLng.distanceBetween(middle, end);
+      status = client.currentRide(userId).orElseThrow();
+      assertEquals(expectedDistance, status.distance, 0.001);
+      assertEquals(pricingModel.fare(status.elapsedMillis, status.distance), (long) status.fare);
+
+      client.endRide(vehicleId, userId);
+      assertTrue(client.currentRide(userId).isEmpty());
+    }
+  }
+
+  public void testReserveVehicle() throws Exception {
+    try (InProcessCluster ipc = InProcessCluster.create()) {
+      var module = new EVModule().withReservationHold(2000, 500);
+      ipc.launchModule(module, new LaunchConfig(1, 1));
+      var client = new EVClient(ipc);
+      var vehicleHold = ipc.clusterPState(moduleName, "$$vehicleHold");
+
+      var userId = client.createAccount("a@example.com").orElseThrow();
+      var userId2 = client.createAccount("b@example.com").orElseThrow();
+      var vehicleId = client.createVehicle();
+      var vehicleId2 = client.createVehicle();
+      var location = new LatLng(1L, 2L);
+      client.updateVehicle(vehicleId, 100, location);
+      client.updateVehicle(vehicleId2, 100, new LatLng(10L, 20L));
+
+      assertTrue(client.reserveVehicle(vehicleId, userId).isPresent());
+      // A user holds one vehicle at a time
+      assertFalse(client.reserveVehicle(vehicleId2, userId).isPresent());
+      // A held vehicle can't be reserved or ridden by anyone else and isn't listed as nearby
+      assertFalse(client.reserveVehicle(vehicleId, userId2).isPresent());
+      assertFalse(client.beginRide(vehicleId, userId2, location).isPresent());
+      assertTrue(client.getVehiclesNearLocation(location).isEmpty());
+
+      // The hold expires and is swept away
+      Thread.sleep(2000);
+      assertEquals(1, client.getVehiclesNearLocation(location).size());
+      var deadline = System.currentTimeMillis() + 30000;
+      while (vehicleHold.selectOne(Path.key(vehicleId)) != null) {
+        assertTrue(System.currentTimeMillis() < deadline);
+        Thread.sleep(100);
+      }
+
+      // The holder can begin a ride, which releases the hold
+      assertTrue(client.reserveVehicle(vehicleId, userId2).isPresent());
+      assertTrue(client.beginRide(vehicleId, userId2, location).isPresent());
+      assertNull(vehicleHold.selectOne(Path.key(vehicleId)));
+
+      // Riders can't reserve until their ride ends
+      assertFalse(client.reserveVehicle(vehicleId2, userId2).isPresent());
+      client.endRide(vehicleId, userId2);
+      assertTrue(client.reserveVehicle(vehicleId2, userId2).isPresent());
+    }
+  }
+
+  public void testBeginRideContention() throws Exception {
+    // Many riders race for a few vehicles. Every vehicle should end up with exactly one rider and
+    // no rider should hold more than one vehicle
+    try (InProcessCluster ipc = InProcessCluster.create()) {
+      ipc.launchModule(new EVModule(), new LaunchConfig(4, 4));
+      var client = new EVClient(ipc);
+      var user = ipc.clusterPState(moduleName, "$$user");
+      var vehicleRide = ipc.clusterPState(moduleName, "$$vehicleRide");
+
+      var location = new LatLng(1L, 2L);
+      var vehicleIds = new ArrayList<String>();
+      for (int i = 0; i < 5; i++) {
+        var vehicleId = client.createVehicle();
+        client.updateVehicle(vehicleId, 100, location);
+        vehicleIds.add(vehicleId);
+      }
+      var userIds = new ArrayList<String>();
+      for (int i = 0; i < 40; i++) {
+        userIds.add(client.createAccount("rider" + i + "@example.com").orElseThrow());
+      }
+
+      var executor = Executors.newFixedThreadPool(8);
+      var results = executor.invokeAll(userIds.stream().map((userId) -> (Callable<Optional<String>>) () -> {
+        var candidates = new ArrayList<>(vehicleIds);
+        Collections.shuffle(candidates);
+        for (var vehicleId : candidates) {
+          if (client.beginRide(vehicleId, userId, location).isPresent()) return Optional.of(vehicleId);
+        }
+        return Optional.<String>empty();
+      }).toList());
+      executor.shutdown();
+
+      var riddenVehicles = new HashSet<String>();
+      for (var result : results) result.get().ifPresent(riddenVehicles::add);
+      assertEquals(new HashSet<>(vehicleIds), riddenVehicles);
+      assertEquals(vehicleIds.size(), results.stream().filter((r) -> {
+        try {
+          return r.get().isPresent();
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }).count());
+
+      // The stored state agrees on who is riding what
+      var ridersInRide = 0;
+      for (var userId : userIds) {
+        if (user.selectOne(Path.key(userId, "inRide"))) {
+          ridersInRide++;
+          String vehicleId = user.selectOne(Path.key(userId, "currentVehicleId"));
+          assertEquals(userId, vehicleRide.selectOne(Path.key(vehicleId, "riderId")));
+        }
+      }
+      assertEquals(vehicleIds.size(), ridersInRide);
+    }
+  }
+
   public void testEndRide() throws Exception {
     try (InProcessCluster ipc = InProcessCluster.create()) {
       var client = launchModule(ipc);
@@ -247,6 +521,147 @@ public class EVClientTest extends TestCase {
     }
   }
 
+  public void testBackfill() throws Exception {
+    try (InProcessCluster ipc = InProcessCluster.create()) {
+      var module = new EVModule();
+      ipc.launchModule(module, new LaunchConfig(4, 2));
+      var client = new EVClient(ipc);
+
+      // History that exists before the backfill topology is deployed
+      var vehicleId = client.createVehicle();
+      for (int i = 0; i < 3; i++) {
+        client.updateVehicle(vehicleId, 100, new LatLng(1L, 2L));
+      }
+      var userId = client.createAccount("a@example.com").orElseThrow();
+      client.beginRide(vehicleId, userId, new LatLng(1L, 2L)).orElseThrow();
+
+      ipc.updateModule(new EVModule().withBackfill());
+
+      var deadline = System.currentTimeMillis() + 30000;
+      while (!client.getBackfillStatus().caughtUp) {
+        assertTrue(System.currentTimeMillis() < deadline);
+        Thread.sleep(100);
+      }
+      var status = client.getBackfillStatus();
+      assertEquals(status.total, status.processed);
+
+      var usage = ipc.clusterPState(moduleName, EVModule.backfillPState(EVModule.BACKFILL_VERSION));
+      assertEquals(3L, (long) usage.selectOne(Path.key(vehicleId, "updates")));
+      assertEquals(1L, (long) usage.selectOne(Path.key(vehicleId, "rideRequests")));
+    }
+  }
+
+  public void testBackfillVersionBump() throws Exception {
+    try (InProcessCluster ipc = InProcessCluster.create()) {
+      ipc.launchModule(new EVModule().withBackfill(1), new LaunchConfig(4, 2));
+      var client = new EVClient(ipc);
+
+      var vehicleId = client.createVehicle();
+      for (int i = 0; i < 3; i++) {
+        client.updateVehicle(vehicleId, 100, new LatLng(1L, 2L));
+      }
+      var deadline = System.currentTimeMillis() + 30000;
+      while (!client.getBackfillStatus().caughtUp) {
+        assertTrue(System.currentTimeMillis() < deadline);
+        Thread.sleep(100);
+      }
+
+      // A new version rebuilds from the start of the depots rather than carrying on from the old
+      // version's offsets
+      ipc.updateModule(new EVModule().withBackfill(2));
+      client.updateVehicle(vehicleId, 100, new LatLng(1L, 2L));
+      while (!client.getBackfillStatus().caughtUp) {
+        assertTrue(System.currentTimeMillis() < deadline);
+        Thread.sleep(100);
+      }
+      var status = client.getBackfillStatus();
+      assertEquals(status.total, status.processed);
+
+      var usage = ipc.clusterPState(moduleName, EVModule.backfillPState(2));
+      assertEquals(4L, (long) usage.selectOne(Path.key(vehicleId, "updates")));
+    }
+  }
+
+  public void testNearestVehiclesCache() throws Exception {
+    try (InProcessCluster ipc = InProcessCluster.create()) {
+      var client = launchModule(ipc);
+      client.enableNearestVehiclesCache(60000, 2);
+
+      var location = new LatLng(1L, 2L);
+      var vehicleId = client.createVehicle();
+      client.updateVehicle(vehicleId, 100, location);
+
+      assertEquals(1, client.getVehiclesNearLocation(location).size());
+      // A nearby search in the same cell is served from the cache
+      assertEquals(1, client.getVehiclesNearLocation(new LatLng(1.00001, 2.00001)).size());
+      var stats = client.getNearestVehiclesCacheStats().orElseThrow();
+      assertEquals(1, stats.hits);
+      assertEquals(1, stats.misses);
+      assertEquals(0.5, stats.hitRate());
+
+      // Moving a cached vehicle drops the results it was in
+      client.updateVehicle(vehicleId, 100, new LatLng(10L, 10L));
+      assertTrue(client.getVehiclesNearLocation(location).get(0).location.equals(new LatLng(10L, 10L)));
+      assertEquals(1, client.getNearestVehiclesCacheStats().orElseThrow().invalidations);
+
+      // Only the two most recently used cells are kept
+      client.getVehiclesNearLocation(new LatLng(3L, 3L));
+      client.getVehiclesNearLocation(new LatLng(4L, 4L));
+      assertEquals(1, client.getNearestVehiclesCacheStats().orElseThrow().evictions);
+
+      // Cached results are shared so they can't be modified
+      var dropOff = new LatLng(10L, 10L);
+      var cached = client.getVehiclesNearLocation(dropOff);
+      assertSame(cached, client.getVehiclesNearLocation(dropOff));
+      try {
+        cached.clear();
+        fail();
+      } catch (UnsupportedOperationException e) {
+        // expected
+      }
+
+      // Ending a ride at a known drop-off point makes the vehicle visible there again
+      var userId = client.createAccount("a@example.com").orElseThrow();
+      client.beginRide(vehicleId, userId, dropOff).orElseThrow();
+      assertTrue(client.getVehiclesNearLocation(dropOff).isEmpty());
+      client.endRide(vehicleId, userId, dropOff);
+      assertEquals(1, client.getVehiclesNearLocation(dropOff).size());
+    }
+  }
+
+  public void testDemandSupply() throws Exception {
+    try (InProcessCluster ipc = InProcessCluster.create()) {
+      var client = launchModule(ipc);
+      client.enableDemandCapture(1);
+
+      var searchLocation = new LatLng(51.5, -0.12);
+      var searchCell = DemandGrid.cellOf(searchLocation);
+      var emptyCell = DemandGrid.cellOf(new LatLng(10L, 10L));
+
+      // Two vehicles in the searched cell
+      for (int i = 0; i < 2; i++) {
+        client.updateVehicle(client.createVehicle(), 100, searchLocation);
+      }
+
+      var since = System.currentTimeMillis();
+      for (int i = 0; i < 5; i++) {
+        client.getVehiclesNearLocation(searchLocation);
+      }
+      ipc.waitForMicrobatchProcessedCount(moduleName, "demand", 5);
+
+      var demandSupply = client.getDemandSupply(List.of(searchCell, emptyCell), since);
+      var searched = demandSupply.get(searchCell);
+      assertEquals(5L, (long) searched.demand);
+      assertEquals(2L, (long) searched.supply);
+      assertEquals(3L, searched.imbalance());
+
+      // Cells without searches or vehicles are still reported
+      var empty = demandSupply.get(emptyCell);
+      assertEquals(0L, (long) empty.demand);
+      assertEquals(0L, (long) empty.supply);
+    }
+  }
+
   // Ignore below code
 
   public void testGlobalObject() throws Exception {
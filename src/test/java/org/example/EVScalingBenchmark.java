@@ -0,0 +1,203 @@
+package org.example;
+
+import com.rpl.rama.test.InProcessCluster;
+import com.rpl.rama.test.LaunchConfig;
+import junit.framework.TestCase;
+import org.example.data.LatLng;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the same mixed workload against the module at different numbers of tasks and threads and
+ * reports per operation throughput and latency.
+ * <p>
+ * Operations are picked at random by weight from one concurrent loop, so queries and ride begins are
+ * measured while competing with vehicle updates. Not part of the default test run as it takes several
+ * minutes. Run it with {@code mvn test -Dtest=EVScalingBenchmark}, and {@code -Dbench.ops=N} to change
+ * the number of operations run per configuration, N times the number of operation types.
+ */
+public class EVScalingBenchmark extends TestCase {
+
+  private static final int[] TASKS = {1, 4, 16, 64};
+  private static final int[] THREADS = {1, 4};
+  private static final int CLIENT_THREADS = 16;
+  private static final int VEHICLES = 200;
+  // Riders with a vehicle of their own, so their rides never contend
+  private static final int RIDERS = 64;
+  // Riders racing for the last few vehicles in rideBeginContended
+  private static final int CONTENDED_RIDERS = 64;
+  private static final int CONTENDED_VEHICLES = 8;
+  // Scaling efficiency below which an operation is flagged, 1.0 is perfectly linear
+  private static final double SUB_LINEAR_THRESHOLD = 0.7;
+
+  private static final List<String> OPERATIONS = List.of("vehicleUpdate", "nearestVehicles", "rideBegin", "rideEnd", "rideBeginContended");
+
+  // Relative frequency of each step of the mix. A ride step begins a ride if the rider isn't in one
+  // and ends it otherwise
+  private static final int UPDATE_WEIGHT = 50;
+  private static final int NEAREST_WEIGHT = 20;
+  private static final int RIDE_WEIGHT = 15;
+  private static final int CONTENDED_RIDE_WEIGHT = 15;
+
+  private record Config(int tasks, int threads) {
+    @Override
+    public String toString() {
+      return tasks + " tasks/" + threads + " threads";
+    }
+  }
+
+  private record Result(double opsPerSecond, double p50Millis, double p99Millis) { }
+
+  public void testScaling() throws Exception {
+    var ops = Integer.getInteger("bench.ops", 500);
+    var results = new LinkedHashMap<Config, Map<String, Result>>();
+    for (var tasks : TASKS) {
+      for (var threads : THREADS) {
+        // Rama spreads tasks evenly over threads
+        if (threads > tasks || tasks % threads != 0) continue;
+        var config = new Config(tasks, threads);
+        results.put(config, runWorkload(config, ops * OPERATIONS.size()));
+      }
+    }
+    report(results);
+    assertEquals(OPERATIONS.size(), results.values().iterator().next().size());
+  }
+
+  private Map<String, Result> runWorkload(Config config, int totalOps) throws Exception {
+    try (InProcessCluster ipc = InProcessCluster.create()) {
+      ipc.launchModule(new EVModule(), new LaunchConfig(config.tasks, config.threads));
+      var client = new EVClient(ipc);
+      var random = new Random(42);
+      var center = new LatLng(51.5, -0.12);
+
+      var vehicleIds = new ArrayList<String>();
+      var vehicleLocations = new ArrayList<LatLng>();
+      for (int i = 0; i < VEHICLES; i++) {
+        var vehicleId = client.createVehicle();
+        var location = new LatLng(center.latitude + random.nextDouble() / 100, center.longitude + random.nextDouble() / 100);
+        client.updateVehicle(vehicleId, 100, location);
+        vehicleIds.add(vehicleId);
+        vehicleLocations.add(location);
+      }
+      var riderIds = new ArrayList<String>();
+      for (int i = 0; i < RIDERS + CONTENDED_RIDERS; i++) {
+        riderIds.add(client.createAccount("rider" + i + "@example.com").orElseThrow());
+      }
+
+      // A rider is used by one client thread at a time. riding holds the index of the rider's vehicle,
+      // or -1, and is only accessed while the rider is claimed
+      var claimed = new AtomicBoolean[riderIds.size()];
+      var riding = new int[riderIds.size()];
+      for (int r = 0; r < riderIds.size(); r++) {
+        claimed[r] = new AtomicBoolean();
+        riding[r] = -1;
+      }
+
+      var latencies = new ConcurrentHashMap<String, Queue<Long>>();
+      OPERATIONS.forEach((operation) -> latencies.put(operation, new ConcurrentLinkedQueue<>()));
+      var remaining = new AtomicInteger(totalOps);
+      var totalWeight = UPDATE_WEIGHT + NEAREST_WEIGHT + RIDE_WEIGHT + CONTENDED_RIDE_WEIGHT;
+
+      Callable<Void> worker = () -> {
+        var threadRandom = ThreadLocalRandom.current();
+        while (remaining.getAndDecrement() > 0) {
+          var pick = threadRandom.nextInt(totalWeight);
+          if (pick < UPDATE_WEIGHT) {
+            var v = threadRandom.nextInt(VEHICLES);
+            timed(latencies, "vehicleUpdate", () -> client.updateVehicle(vehicleIds.get(v), 100, vehicleLocations.get(v)));
+          } else if (pick < UPDATE_WEIGHT + NEAREST_WEIGHT) {
+            timed(latencies, "nearestVehicles", () -> client.getVehiclesNearLocation(center));
+          } else {
+            var contended = pick >= UPDATE_WEIGHT + NEAREST_WEIGHT + RIDE_WEIGHT;
+            var r = contended ? RIDERS + threadRandom.nextInt(CONTENDED_RIDERS) : threadRandom.nextInt(RIDERS);
+            // Skip this step if another thread is using the rider
+            if (!claimed[r].compareAndSet(false, true)) continue;
+            try {
+              if (riding[r] >= 0) {
+                var v = riding[r];
+                timed(latencies, "rideEnd", () -> client.endRide(vehicleIds.get(v), riderIds.get(r)));
+                riding[r] = -1;
+              } else {
+                // Contended riders race for the last few vehicles, everyone else rides their own
+                var v = contended ? VEHICLES - 1 - threadRandom.nextInt(CONTENDED_VEHICLES) : r;
+                var began = new boolean[1];
+                timed(latencies, contended ? "rideBeginContended" : "rideBegin",
+                    () -> began[0] = client.beginRide(vehicleIds.get(v), riderIds.get(r), vehicleLocations.get(v)).isPresent());
+                if (began[0]) {
+                  riding[r] = v;
+                } else if (!contended) {
+                  throw new IllegalStateException("Ride didn't begin");
+                }
+              }
+            } finally {
+              claimed[r].set(false);
+            }
+          }
+        }
+        return null;
+      };
+
+      var executor = Executors.newFixedThreadPool(CLIENT_THREADS);
+      long elapsedNanos;
+      try {
+        var start = System.nanoTime();
+        for (var future : executor.invokeAll(Collections.nCopies(CLIENT_THREADS, worker))) future.get();
+        elapsedNanos = System.nanoTime() - start;
+      } finally {
+        executor.shutdown();
+      }
+
+      // Throughput of each operation is its share of the mix over the whole run
+      var results = new LinkedHashMap<String, Result>();
+      for (var operation : OPERATIONS) {
+        var operationLatencies = new ArrayList<>(latencies.get(operation));
+        if (!operationLatencies.isEmpty()) results.put(operation, summarize(operationLatencies, elapsedNanos));
+      }
+      return results;
+    }
+  }
+
+  private interface Operation {
+    void run() throws Exception;
+  }
+
+  private static void timed(Map<String, Queue<Long>> latencies, String operation, Operation body) throws Exception {
+    var start = System.nanoTime();
+    body.run();
+    latencies.get(operation).add(System.nanoTime() - start);
+  }
+
+  private Result summarize(List<Long> latencies, long elapsedNanos) {
+    var sorted = new ArrayList<>(latencies);
+    Collections.sort(sorted);
+    var p50 = sorted.get(sorted.size() / 2) / 1e6;
+    var p99 = sorted.get(Math.min(sorted.size() - 1, (int) (sorted.size() * 0.99))) / 1e6;
+    return new Result(latencies.size() / (elapsedNanos / 1e9), p50, p99);
+  }
+
+  private void report(Map<Config, Map<String, Result>> results) {
+    var baseline = results.values().iterator().next();
+    System.out.printf("%-20s %-16s %12s %10s %10s %10s%n", "config", "operation", "ops/s", "p50 ms", "p99 ms", "efficiency");
+    results.forEach((config, byOperation) -> byOperation.forEach((operation, result) -> {
+      // Threads are the parallelism available in process, so ideal throughput grows with them
+      var speedup = result.opsPerSecond / baseline.get(operation).opsPerSecond;
+      var efficiency = speedup / config.threads;
+      var flags = "";
+      if (efficiency < SUB_LINEAR_THRESHOLD) flags += "  SUB-LINEAR";
+      // Adding tasks without threads should cost little, except for operations that fan out to every
+      // task such as nearestVehicles
+      var fewestTasks = results.entrySet().stream()
+          .filter((e) -> e.getKey().threads == config.threads)
+          .findFirst().orElseThrow();
+      var taskRatio = result.opsPerSecond / fewestTasks.getValue().get(operation).opsPerSecond;
+      if (taskRatio < SUB_LINEAR_THRESHOLD) {
+        flags += String.format("  SLOWER WITH TASKS (%.2fx of %s)", taskRatio, fewestTasks.getKey());
+      }
+      System.out.printf("%-20s %-16s %12.1f %10.2f %10.2f %10.2f%s%n",
+          config, operation, result.opsPerSecond, result.p50Millis, result.p99Millis, efficiency, flags);
+    }));
+  }
+}